@@ -0,0 +1,92 @@
+package com.izzy.kart;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Compares FileImport against the byte[] stream loops it replaced.
+ *
+ * An instrumented test, run on a device with:
+ *   ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.izzy.kart.FileImportBenchmark
+ * Results are logged under the "FileImportBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class FileImportBenchmark {
+    private static final String TAG = "FileImportBenchmark";
+    private static final int SIZE_MB = 128;
+    private static final int ROUNDS = 3;
+
+    private interface Copier {
+        void copy(File src, File dest) throws IOException;
+    }
+
+    @Test
+    public void compareCopies() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File dir = new File(context.getCacheDir(), "import_benchmark");
+        dir.mkdirs();
+        File src = new File(dir, "src.bin");
+        File dest = new File(dir, "dest.bin");
+
+        try {
+            writeRandomFile(src, SIZE_MB);
+
+            // The "uri" variants go through ContentResolver exactly like SAF imports do
+            measure("stream 8K (uri)", src, dest, (s, d) -> streamCopy(context, Uri.fromFile(s), d, 8 * 1024));
+            measure("stream 64K (uri)", src, dest, (s, d) -> streamCopy(context, Uri.fromFile(s), d, 64 * 1024));
+            measure("FileImport (uri)", src, dest,
+                    (s, d) -> FileImport.copyFromUri(context.getContentResolver(), Uri.fromFile(s), d, false));
+            measure("FileImport (file)", src, dest, (s, d) -> FileImport.copyFile(s, d, false));
+        } finally {
+            src.delete();
+            dest.delete();
+            dir.delete();
+        }
+    }
+
+    private static void measure(String name, File src, File dest, Copier copier) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            dest.delete();
+            long start = System.nanoTime();
+            copier.copy(src, dest);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double seconds = best / 1e9;
+        Log.i(TAG, String.format("%-20s %7.1f MB/s (best of %d, %d MB)", name, SIZE_MB / seconds, ROUNDS, SIZE_MB));
+    }
+
+    // The pre-FileImport copy loop
+    private static void streamCopy(Context context, Uri src, File dest, int bufferSize) throws IOException {
+        try (InputStream in = context.getContentResolver().openInputStream(src);
+             FileOutputStream out = new FileOutputStream(dest)) {
+            if (in == null) throw new IOException("Null InputStream from resolver");
+            byte[] buf = new byte[bufferSize];
+            int r;
+            while ((r = in.read(buf)) != -1) { out.write(buf, 0, r); }
+            out.flush();
+        }
+    }
+
+    private static void writeRandomFile(File file, int sizeMb) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(64).nextBytes(chunk);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) out.write(chunk);
+            out.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.izzy.kart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Checks that a file is a usable mk64.o2r before the engine is told to open it.
+ *
+ * Only the end-of-central-directory record, the central directory and the tiny "version" entry are read,
+ * all with positional reads on a FileChannel. The archive is rejected if any of them is malformed, if an
+ * entry points outside the file or uses a compression method the engine can't inflate, or if one of the
+ * directories every mk64.o2r made by Torch contains is missing. The entry table this produces also gives
+ * the engine the archive's file list, so it doesn't have to walk the directory again.
+ */
+final class ArchiveCheck {
+    private static final int EOCD_SIZE = 22;
+    private static final int TAIL_SIZE = 64 * 1024 + EOCD_SIZE; // EOCD plus the longest possible comment
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORE = 0;
+    private static final int METHOD_DEFLATE = 8;
+    // Top-level directories of the Torch output for every supported ROM
+    private static final String[] REQUIRED_DIRS = { "startup_logo/", "common_data/", "mario_kart/", "other_textures/" };
+
+    /** One central directory entry. */
+    static final class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    static final class Result {
+        final long archiveSize;
+        final List<Entry> entries = new ArrayList<>();
+        boolean hasGameVersion;
+        int gameVersion;
+        // Why the archive can't be used, or null
+        String problem;
+
+        Result(long archiveSize) {
+            this.archiveSize = archiveSize;
+        }
+
+        boolean isValid() {
+            return problem == null;
+        }
+
+        String[] names() {
+            String[] names = new String[entries.size()];
+            for (int i = 0; i < names.length; i++) names[i] = entries.get(i).name;
+            return names;
+        }
+
+        @Override
+        public String toString() {
+            return problem != null ? problem : entries.size() + " entries, " + archiveSize + " bytes"
+                    + (hasGameVersion ? ", game version " + Integer.toHexString(gameVersion) : "");
+        }
+    }
+
+    private ArchiveCheck() {}
+
+    /** Checks the archive occupying [offset, offset + length) of the channel; length -1 reads to its end. */
+    static Result check(FileChannel channel, long offset, long length) throws IOException {
+        long size = length >= 0 ? length : channel.size() - offset;
+        Result result = new Result(size);
+        if (size < EOCD_SIZE) return fail(result, "the file is too small to be an archive");
+
+        // The central directory's location is in the end-of-central-directory record at the very end
+        ByteBuffer tail = read(channel, offset + size - Math.min(TAIL_SIZE, size), (int) Math.min(TAIL_SIZE, size));
+        int eocd = findEocd(tail);
+        if (eocd < 0) return fail(result, "it is not a zip archive (no end of central directory)");
+        int count = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            return fail(result, "it is a zip64 archive, which Torch doesn't produce");
+        }
+        if (cdOffset + cdSize > size) return fail(result, "the file is truncated (central directory past its end)");
+
+        ByteBuffer cd = read(channel, offset + cdOffset, (int) cdSize);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CD_HEADER_SIZE > cdSize || cd.getInt(pos) != 0x02014b50) {
+                return fail(result, "the central directory is damaged at entry " + i);
+            }
+            int method = cd.getShort(pos + 10) & 0xffff;
+            long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+            long uncompressedSize = cd.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(pos + 28) & 0xffff;
+            int extraLength = cd.getShort(pos + 30) & 0xffff;
+            int commentLength = cd.getShort(pos + 32) & 0xffff;
+            long localHeader = cd.getInt(pos + 42) & 0xffffffffL;
+            if (pos + CD_HEADER_SIZE + nameLength > cdSize) {
+                return fail(result, "the central directory is damaged at entry " + i);
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(pos + CD_HEADER_SIZE);
+            cd.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (localHeader + LOCAL_HEADER_SIZE + nameLength + compressedSize > cdOffset) {
+                return fail(result, name + " lies outside the archive");
+            }
+            if (!name.endsWith("/")) {
+                if (method != METHOD_STORE && method != METHOD_DEFLATE) {
+                    return fail(result, name + " uses unsupported compression method " + method);
+                }
+                result.entries.add(new Entry(name, method, compressedSize, uncompressedSize, localHeader));
+            }
+            pos += CD_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        Set<String> missing = new LinkedHashSet<>();
+        for (String dir : REQUIRED_DIRS) missing.add(dir);
+        for (Entry entry : result.entries) {
+            int slash = entry.name.indexOf('/');
+            if (slash > 0) missing.remove(entry.name.substring(0, slash + 1));
+            if (entry.name.equals("version")) readGameVersion(channel, offset, entry, result);
+        }
+        if (!missing.isEmpty()) {
+            return fail(result, "it is missing " + String.join(", ", missing) + " (not an mk64.o2r made by Torch?)");
+        }
+        return result;
+    }
+
+    // Same layout Archive::Load() reads: an endianness byte (0 little, 1 big) then the u32 version
+    private static void readGameVersion(FileChannel channel, long offset, Entry entry, Result result) throws IOException {
+        if (entry.size < 5 || entry.compressedSize > 1024) return;
+        ByteBuffer local = read(channel, offset + entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (local.getInt(0) != 0x04034b50) return;
+        long dataStart = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+        ByteBuffer raw = read(channel, offset + dataStart, (int) entry.compressedSize);
+
+        byte[] data = new byte[5];
+        if (entry.method == METHOD_STORE) {
+            raw.get(data);
+        } else {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(raw.array(), 0, raw.limit());
+                if (inflater.inflate(data) < data.length) return;
+            } catch (DataFormatException e) {
+                return;
+            } finally {
+                inflater.end();
+            }
+        }
+
+        ByteBuffer version = ByteBuffer.wrap(data, 1, 4).order(data[0] == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        result.gameVersion = version.getInt();
+        result.hasGameVersion = true;
+    }
+
+    private static int findEocd(ByteBuffer tail) {
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == 0x06054b50) return i;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of archive at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static Result fail(Result result, String problem) {
+        result.problem = problem;
+        result.entries.clear();
+        return result;
+    }
+}
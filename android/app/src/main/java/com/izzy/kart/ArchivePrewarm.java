@@ -0,0 +1,251 @@
+package com.izzy.kart;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pulls the parts of the game archives that the engine reads at boot into the page cache ahead of time.
+ *
+ * Runs on a background-priority thread while the rest of startup (mod sync, SDL init) carries on. For
+ * each archive it reads the central directory, which GameEngine parses as soon as it opens the archive,
+ * and then the entries the previous boot loaded before the title screen. The engine records those in
+ * boot_profile.txt. Every range first gets a POSIX_FADV_WILLNEED hint so the kernel can queue all of
+ * it at once, and is then read through, because FUSE-backed providers may ignore the hint.
+ */
+final class ArchivePrewarm {
+    private static final String TAG = "ArchivePrewarm";
+    static final String PROFILE_NAME = "boot_profile.txt";
+    private static final int EOCD_SIZE = 22;
+    private static final int TAIL_SIZE = 64 * 1024 + EOCD_SIZE; // EOCD plus the longest possible comment
+    private static final long MERGE_GAP = 256 * 1024; // ranges closer than this are read as one
+    private static final int LOCAL_HEADER_SLACK = 30 + 64; // local header, whose extra field may differ
+    private static final int READ_SIZE = 1024 * 1024;
+
+    /** An archive as the engine will open it: a file, or a range of a descriptor Java keeps open. */
+    static final class Target {
+        final String enginePath;
+        final File file;
+        final int fd;
+        final long offset;
+        final long length;
+
+        private Target(String enginePath, File file, int fd, long offset, long length) {
+            this.enginePath = enginePath;
+            this.file = file;
+            this.fd = fd;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Target ofFile(File file) {
+            return new Target(file.getAbsolutePath(), file, -1, 0, -1);
+        }
+
+        static Target ofDescriptor(String enginePath, int fd, long offset, long length) {
+            return new Target(enginePath, null, fd, offset, length);
+        }
+    }
+
+    // For the time-to-title log line
+    private static volatile String summary = "prewarm off";
+
+    private final List<Target> targets = new ArrayList<>();
+    private final File profileFile;
+
+    ArchivePrewarm(File profileFile) {
+        this.profileFile = profileFile;
+    }
+
+    ArchivePrewarm add(Target target) {
+        targets.add(target);
+        return this;
+    }
+
+    /** Describes the last prewarm run (or that there was none). */
+    static String summary() {
+        return summary;
+    }
+
+    /** Starts prewarming in the background and returns immediately. */
+    void start() {
+        if (targets.isEmpty()) return;
+        summary = "prewarm running";
+        Thread thread = new Thread(this::run, "ArchivePrewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = System.nanoTime();
+        Map<String, Set<String>> profile = readProfile(profileFile);
+
+        long bytes = 0;
+        for (Target target : targets) {
+            try {
+                bytes += prewarm(target, profile.get(target.enginePath));
+            } catch (IOException | ErrnoException e) {
+                Log.w(TAG, "Could not prewarm " + target.enginePath, e);
+            }
+        }
+
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        summary = "prewarmed " + bytes / 1024 + " KB in " + ms + " ms";
+        Log.i(TAG, "Prewarmed " + targets.size() + " archive(s): " + bytes + " bytes in " + ms + " ms");
+    }
+
+    // Returns the number of bytes read.
+    private long prewarm(Target target, Set<String> bootEntries) throws IOException, ErrnoException {
+        try (ParcelFileDescriptor pfd = target.file != null
+                ? ParcelFileDescriptor.open(target.file, ParcelFileDescriptor.MODE_READ_ONLY)
+                : ParcelFileDescriptor.fromFd(target.fd)) { // a dup; the original stays with the engine
+            FileDescriptor fd = pfd.getFileDescriptor();
+            long length = target.length >= 0 ? target.length : Os.fstat(fd).st_size - target.offset;
+
+            // The central directory's location is in the end-of-central-directory record at the very end
+            byte[] tail = new byte[(int) Math.min(TAIL_SIZE, length)];
+            readFully(fd, tail, target.offset + length - tail.length);
+            int eocd = findEocd(tail);
+            if (eocd < 0) {
+                Log.w(TAG, target.enginePath + " has no end of central directory record");
+                return tail.length;
+            }
+            long cdSize = u32(tail, eocd + 12);
+            long cdOffset = u32(tail, eocd + 16);
+            if (cdOffset + cdSize > length) {
+                Log.w(TAG, target.enginePath + " has a central directory past its end (zip64?)");
+                return tail.length;
+            }
+
+            // Reading it is the prewarm of the central directory and gives the entries' offsets
+            byte[] cd = new byte[(int) cdSize];
+            advise(fd, target.offset + cdOffset, cdSize);
+            readFully(fd, cd, target.offset + cdOffset);
+            long bytes = tail.length + cdSize;
+            if (bootEntries == null || bootEntries.isEmpty()) return bytes;
+
+            List<long[]> ranges = bootRanges(cd, bootEntries);
+            for (long[] range : ranges) advise(fd, target.offset + range[0], range[1] - range[0]);
+            byte[] buf = new byte[READ_SIZE];
+            for (long[] range : ranges) {
+                for (long pos = range[0]; pos < range[1]; ) {
+                    int n = Os.pread(fd, buf, 0, (int) Math.min(buf.length, range[1] - pos), target.offset + pos);
+                    if (n <= 0) break;
+                    pos += n;
+                    bytes += n;
+                }
+            }
+            return bytes;
+        }
+    }
+
+    // Byte ranges [start, end) of the given entries, sorted and merged across small gaps.
+    private static List<long[]> bootRanges(byte[] cd, Set<String> names) {
+        List<long[]> ranges = new ArrayList<>();
+        int pos = 0;
+        while (pos + 46 <= cd.length && u32(cd, pos) == 0x02014b50L) {
+            long compressedSize = u32(cd, pos + 20);
+            int nameLength = u16(cd, pos + 28);
+            int extraLength = u16(cd, pos + 30);
+            int commentLength = u16(cd, pos + 32);
+            long localHeader = u32(cd, pos + 42);
+            if (pos + 46 + nameLength > cd.length) break;
+
+            String name = new String(cd, pos + 46, nameLength, StandardCharsets.UTF_8);
+            if (names.contains(name)) {
+                ranges.add(new long[] {
+                    localHeader, localHeader + LOCAL_HEADER_SLACK + nameLength + extraLength + compressedSize
+                });
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] - last[1] <= MERGE_GAP) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static int findEocd(byte[] tail) {
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (u32(tail, i) == 0x06054b50L) return i;
+        }
+        return -1;
+    }
+
+    private static void advise(FileDescriptor fd, long offset, long length) {
+        try {
+            Os.posix_fadvise(fd, offset, length, OsConstants.POSIX_FADV_WILLNEED);
+        } catch (ErrnoException e) {
+            // Only a hint; the reads that follow do the work regardless
+        }
+    }
+
+    private static void readFully(FileDescriptor fd, byte[] buf, long offset) throws ErrnoException, IOException {
+        int filled = 0;
+        while (filled < buf.length) {
+            int n = Os.pread(fd, buf, filled, buf.length - filled, offset + filled);
+            if (n <= 0) throw new IOException("Unexpected end of archive at " + (offset + filled));
+            filled += n;
+        }
+    }
+
+    private static long u32(byte[] b, int i) {
+        return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24;
+    }
+
+    private static int u16(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+    }
+
+    // Archive path -> entries the last boot loaded from it
+    private static Map<String, Set<String>> readProfile(File file) {
+        Map<String, Set<String>> profile = new HashMap<>();
+        if (!file.isFile()) return profile;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!"v1".equals(reader.readLine())) return profile;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue;
+                String archive = line.substring(0, tab);
+                Set<String> entries = profile.get(archive);
+                if (entries == null) {
+                    entries = new HashSet<>();
+                    profile.put(archive, entries);
+                }
+                entries.add(line.substring(tab + 1));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + PROFILE_NAME, e);
+        }
+        return profile;
+    }
+}
@@ -3,23 +3,20 @@ package com.izzy.kart;
 import android.content.Context;
 import android.content.res.AssetManager;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 public class AssetCopyUtil {
 
     public static void copyAssetsToExternal(Context context, String assetsFolderPath, String externalFolderPath) throws IOException {
         AssetManager assetManager = context.getAssets();
-        String[] assetFiles = assetManager.list(assetsFolderPath);
+        // Directory structure comes from the build-time manifest; only file contents are read from the APK
+        AssetManifest manifest = AssetManifest.get(assetManager);
 
-        for (String assetFile : assetFiles) {
-            String assetPath = assetsFolderPath + File.separator + assetFile;
-            String externalPath = externalFolderPath + File.separator + assetFile;
+        for (AssetManifest.Entry asset : manifest.list(assetsFolderPath)) {
+            String externalPath = externalFolderPath + File.separator + asset.name();
 
-            if (assetManager.list(assetPath).length > 0) {
+            if (asset.directory) {
                 // It's a directory
                 // Check if the directory exists in the external storage
                 File externalDir = new File(externalPath);
@@ -28,32 +25,14 @@ public class AssetCopyUtil {
                 }
 
                 // Recursively copy contents of the directory
-                copyAssetsToExternal(context, assetPath, externalPath);
+                copyAssetsToExternal(context, asset.path, externalPath);
             } else {
                 // It's a file
                 File externalFile = new File(externalPath);
                 if (!externalFile.exists()) {
                     // Check if the file exists in the external storage
-                    InputStream in = null;
-                    OutputStream out = null;
-
-                    try {
-                        in = assetManager.open(assetPath);
-                        out = new FileOutputStream(externalPath);
-
-                        byte[] buffer = new byte[1024];
-                        int read;
-                        while ((read = in.read(buffer)) != -1) {
-                            out.write(buffer, 0, read);
-                        }
-
-                    } finally {
-                        if (in != null) {
-                            in.close();
-                        }
-                        if (out != null) {
-                            out.close();
-                        }
+                    try (InputStream in = assetManager.open(asset.path)) {
+                        FileImport.copyStream(in, externalFile, false);
                     }
                 }
             }
@@ -75,13 +54,6 @@ public class AssetCopyUtil {
     }
 
     public static void copyFile(File source, File dest) throws IOException {
-        try (InputStream in = new FileInputStream(source);
-             OutputStream out = new FileOutputStream(dest)) {
-            byte[] buf = new byte[64*1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        }
+        FileImport.copyFile(source, dest, false);
     }
 }
@@ -0,0 +1,147 @@
+package com.izzy.kart;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory view of asset_manifest.txt, generated at build time by generateAssetManifest in
+ * app/build.gradle. Loaded once per process; existence checks, directory tests and listings are
+ * answered from it instead of AssetManager.open()/list(), which reopen the APK for every call.
+ */
+final class AssetManifest {
+    private static final String TAG = "AssetManifest";
+    static final String ASSET_NAME = "asset_manifest.txt";
+    private static final int FORMAT_VERSION = 2;
+
+    static final class Entry {
+        final String path;
+        final boolean directory;
+        final long crc;
+        final long size;
+
+        Entry(String path, boolean directory, long crc, long size) {
+            this.path = path;
+            this.directory = directory;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        String name() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+    }
+
+    private static AssetManifest instance;
+
+    private final String version;
+    // Sorted by path, as written by the build
+    private final Map<String, Entry> entries;
+    // Directory path ("" for the root) -> direct children
+    private final Map<String, List<Entry>> children = new HashMap<>();
+
+    private AssetManifest(String version, Map<String, Entry> entries) {
+        this.version = version;
+        this.entries = entries;
+        children.put("", new ArrayList<>());
+        for (Entry e : entries.values()) {
+            if (e.directory) children.put(e.path, new ArrayList<>());
+        }
+        for (Entry e : entries.values()) {
+            int slash = e.path.lastIndexOf('/');
+            List<Entry> siblings = children.get(slash < 0 ? "" : e.path.substring(0, slash));
+            if (siblings != null) siblings.add(e);
+        }
+    }
+
+    static synchronized AssetManifest get(AssetManager assets) {
+        if (instance == null) instance = load(assets);
+        return instance;
+    }
+
+    /** Content version of the bundled assets, or null if the APK carries no manifest. */
+    String version() {
+        return version;
+    }
+
+    Entry entry(String path) {
+        return entries.get(normalize(path));
+    }
+
+    boolean exists(String path) {
+        return entry(path) != null;
+    }
+
+    boolean isDirectory(String path) {
+        String p = normalize(path);
+        return p.isEmpty() || children.containsKey(p);
+    }
+
+    /** Direct children of a directory; empty if it doesn't exist. */
+    List<Entry> list(String dir) {
+        List<Entry> kids = children.get(normalize(dir));
+        return kids != null ? Collections.unmodifiableList(kids) : Collections.emptyList();
+    }
+
+    /** Every file (not directory) in the manifest. */
+    List<Entry> files() {
+        List<Entry> files = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (!e.directory) files.add(e);
+        }
+        return files;
+    }
+
+    private static String normalize(String path) {
+        String p = path.replace('\\', '/');
+        while (p.startsWith("/")) p = p.substring(1);
+        while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+        return p;
+    }
+
+    // Format: "v<format>", the content version, then "type\tcrc\tsize\tpath" lines
+    // (type "f" or "d", crc in hex).
+    private static AssetManifest load(AssetManager assets) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        InputStream raw;
+        try {
+            raw = assets.open(ASSET_NAME);
+        } catch (IOException e) {
+            Log.w(TAG, ASSET_NAME + " missing from assets; treating the APK as having no assets");
+            return new AssetManifest(null, entries);
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) {
+                Log.w(TAG, "Unsupported " + ASSET_NAME + " format");
+                return new AssetManifest(null, entries);
+            }
+            String version = reader.readLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) continue;
+                boolean dir = "d".equals(parts[0]);
+                entries.put(parts[3], new Entry(parts[3], dir, Long.parseLong(parts[1], 16),
+                        Long.parseLong(parts[2])));
+            }
+            Log.i(TAG, "Loaded " + entries.size() + " asset entries (version " + version + ")");
+            return new AssetManifest(version, entries);
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Unreadable " + ASSET_NAME, e);
+            return new AssetManifest(null, new LinkedHashMap<>());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.izzy.kart;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Seeds bundled assets into internal storage, replacing only what changed since the last seed.
+ *
+ * The build-generated {@link AssetManifest} carries a content version and a CRC32 per asset. The
+ * version and CRCs of the last seed are kept next to the seeded files: a matching version returns
+ * immediately, otherwise only assets whose CRC changed are rewritten, each through a temp file,
+ * fsync and rename so a crash never leaves a half-written one.
+ */
+final class AssetSeeder {
+    private static final String TAG = "AssetSeeder";
+    static final String STATE_NAME = ".seed_state";
+    private static final int FORMAT_VERSION = 1;
+
+    static final class Result {
+        boolean upToDate;
+        int written;
+        int unchanged;
+        int skipped;
+
+        @Override
+        public String toString() {
+            if (upToDate) return "up to date";
+            return "written=" + written + ", unchanged=" + unchanged + ", skipped=" + skipped;
+        }
+    }
+
+    private final AssetManager assets;
+    private final File destRoot;
+
+    AssetSeeder(AssetManager assets, File destRoot) {
+        this.assets = assets;
+        this.destRoot = destRoot;
+    }
+
+    /**
+     * Brings destRoot in line with the bundled assets. Paths in {@code exclude} are served some other
+     * way (e.g. read in place from the APK) and are never copied.
+     */
+    Result seed(Set<String> exclude) throws IOException {
+        Result result = new Result();
+
+        AssetManifest manifest = AssetManifest.get(assets);
+        String version = manifest.version();
+        if (version == null) {
+            Log.w(TAG, "No asset manifest, nothing to seed");
+            return result;
+        }
+        Map<String, AssetManifest.Entry> bundled = new LinkedHashMap<>();
+        for (AssetManifest.Entry entry : manifest.files()) bundled.put(entry.path, entry);
+
+        File stateFile = new File(destRoot, STATE_NAME);
+        Map<String, Long> seeded = new LinkedHashMap<>();
+        String seededVersion = readState(stateFile, seeded);
+        if (version.equals(seededVersion) && seeded.keySet().containsAll(without(bundled.keySet(), exclude))) {
+            result.upToDate = true;
+            Log.i(TAG, "Bundled assets " + version + " already seeded");
+            return result;
+        }
+
+        Map<String, Long> next = new LinkedHashMap<>();
+        for (Map.Entry<String, AssetManifest.Entry> e : bundled.entrySet()) {
+            String path = e.getKey();
+            AssetManifest.Entry entry = e.getValue();
+            if (exclude.contains(path)) continue;
+
+            File dest = new File(destRoot, path);
+            Long previous = seeded.get(path);
+
+            if (previous != null && !dest.exists()) {
+                // Seeded before and removed since (e.g. pruned by the mod sync); don't bring it back
+                next.put(path, entry.crc);
+                result.skipped++;
+            } else if (previous != null && previous == entry.crc && dest.length() == entry.size) {
+                next.put(path, entry.crc);
+                result.unchanged++;
+            } else if (previous == null && dest.isFile() && dest.length() == entry.size
+                    && FileImport.crc32(dest) == entry.crc) {
+                // Seeded by a version that kept no state; hash once to adopt it
+                next.put(path, entry.crc);
+                result.unchanged++;
+            } else {
+                replace(path, dest);
+                next.put(path, entry.crc);
+                result.written++;
+            }
+        }
+
+        writeState(stateFile, version, next);
+        Log.i(TAG, "Seeded bundled assets " + (seededVersion != null ? seededVersion : "(none)") + " -> "
+                + version + ": " + result);
+        return result;
+    }
+
+    // Copies an asset next to its destination, syncs it and renames it over the old file.
+    private void replace(String path, File dest) throws IOException {
+        File parent = dest.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        File tmp = new File(parent, dest.getName() + ".seed");
+        try (InputStream in = assets.open(path)) {
+            long total = FileImport.copyStream(in, tmp, true);
+            if (!tmp.renameTo(dest)) throw new IOException("Could not replace " + dest);
+            Log.i(TAG, "Seeded asset " + path + " (" + total + " bytes) -> " + dest.getAbsolutePath());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static Set<String> without(Set<String> paths, Set<String> exclude) {
+        Set<String> kept = new HashSet<>(paths);
+        kept.removeAll(exclude);
+        return kept;
+    }
+
+    // ===== State I/O =====
+    // Format: "v<format>", the seeded asset version, then one "crc\tpath" line per seeded asset (crc in hex).
+    private static String readState(File file, Map<String, Long> out) {
+        if (!file.isFile()) return null;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return null;
+            String version = reader.readLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 2);
+                if (parts.length != 2) continue;
+                out.put(parts[1], Long.parseLong(parts[0], 16));
+            }
+            return version;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Discarding unreadable seed state", e);
+            out.clear();
+            return null;
+        }
+    }
+
+    private static void writeState(File file, String version, Map<String, Long> entries) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            writer.write("v" + FORMAT_VERSION);
+            writer.newLine();
+            writer.write(version);
+            writer.newLine();
+            for (Map.Entry<String, Long> e : entries.entrySet()) {
+                writer.write(Long.toHexString(e.getValue()) + "\t" + e.getKey());
+                writer.newLine();
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.izzy.kart;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The touch controller's state, in a direct buffer the engine reads in place.
+ *
+ * The buffer is handed to native once (MainActivity.nativeSetControllerBuffer); after that the touch path
+ * makes no JNI calls at all. The UI thread is the only writer and publishes with a sequence lock: the
+ * counter is odd while a write is in progress, and the engine takes its once-per-frame snapshot again if
+ * the counter was odd or changed while it copied (Ship::Mobile::PollTouchControls()).
+ *
+ * Look-around movement is published as running totals in inches of finger travel, so the engine gets all
+ * of it between two frames by subtracting its previous snapshot, however many touch events there were,
+ * and the same swipe turns the camera equally far on every screen density. It comes with the time of the
+ * last look event so the engine can turn the movement into an angular velocity.
+ *
+ * Each state carries the time of the touch event it came from, on CLOCK_MONOTONIC like the engine's
+ * steady_clock, so the engine can tell how old the input it picks up is. The joystick's velocity comes
+ * with it, so the engine can extrapolate the stick over that age.
+ *
+ * The layout must match TouchControllerState in libultraship/src/port/mobile/MobileImpl.cpp.
+ */
+final class ControllerState {
+    static final int AXIS_COUNT = 6;
+
+    private static final int SEQUENCE = 0;  // u32
+    private static final int BUTTONS = 4;   // u32, bit n = SDL virtual button n
+    private static final int AXES = 8;      // s16[6]
+    private static final int LOOK_X = 24;   // f64, total inches moved since launch
+    private static final int LOOK_Y = 32;   // f64
+    private static final int EVENT_TIME = 40; // i64, CLOCK_MONOTONIC nanoseconds
+    private static final int LOOK_TIME = 48;  // i64, same clock, last event that moved the look totals
+    private static final int STICK_VELOCITY_X = 56; // f32, full stick deflections per second
+    private static final int STICK_VELOCITY_Y = 60; // f32
+    static final int SIZE = 64;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+    private int sequence;
+
+    // No VarHandle.fullFence() below API 33. ART orders a volatile store and a following volatile load
+    // of the same field on every ABI it supports (dmb on arm, stlr/ldar on arm64, locked ops on x86);
+    // store-then-load is the full fence the sequence lock needs around the payload writes.
+    private static volatile int fence;
+    private int fenceRead; // keeps the volatile load from being dropped
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Publishes a complete state; call from the UI thread only. */
+    void publish(int buttons, short[] axes, float stickVelocityX, float stickVelocityY, double lookX, double lookY,
+                 long lookTimeNanos, long eventTimeNanos) {
+        buffer.putInt(SEQUENCE, ++sequence); // odd: write in progress
+        fullFence();
+        buffer.putInt(BUTTONS, buttons);
+        for (int i = 0; i < AXIS_COUNT; i++) buffer.putShort(AXES + i * 2, axes[i]);
+        buffer.putDouble(LOOK_X, lookX);
+        buffer.putDouble(LOOK_Y, lookY);
+        buffer.putLong(EVENT_TIME, eventTimeNanos);
+        buffer.putLong(LOOK_TIME, lookTimeNanos);
+        buffer.putFloat(STICK_VELOCITY_X, stickVelocityX);
+        buffer.putFloat(STICK_VELOCITY_Y, stickVelocityY);
+        fullFence();
+        buffer.putInt(SEQUENCE, ++sequence);
+    }
+
+    private void fullFence() {
+        fence = sequence;
+        fenceRead = fence;
+    }
+}
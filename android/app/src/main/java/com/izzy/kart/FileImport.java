@@ -0,0 +1,134 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Bulk file copies between SAF documents and local files.
+ *
+ * Documents are opened as ParcelFileDescriptors and moved with FileChannel.transferTo, which the
+ * platform turns into sendfile/copy_file_range so the data never enters the Java heap. Providers that
+ * only hand out pipes (no size, no seek) fall back to a reusable direct buffer per thread.
+ */
+final class FileImport {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Upper bound per transferTo call; some kernels cap sendfile at 2 GB and short-write past that
+    private static final long MAX_TRANSFER = 64L * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private FileImport() {}
+
+    /** Copies a SAF document into a local file. Returns the number of bytes written. */
+    static long copyFromUri(ContentResolver resolver, Uri src, File dest, boolean sync) throws IOException {
+        try (ParcelFileDescriptor pfd = openDescriptor(resolver, src, "r");
+             FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+             FileOutputStream out = new FileOutputStream(dest)) {
+            long total = pfd.getStatSize() >= 0
+                    ? transfer(in.getChannel(), out.getChannel())
+                    : pump(in.getChannel(), out.getChannel());
+            if (sync) out.getFD().sync();
+            return total;
+        }
+    }
+
+    /** Copies a local file into an existing SAF document, replacing its contents. */
+    static long copyToUri(ContentResolver resolver, File src, Uri dest) throws IOException {
+        try (ParcelFileDescriptor pfd = openDescriptor(resolver, dest, "w");
+             FileInputStream in = new FileInputStream(src);
+             FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+            return transfer(in.getChannel(), out.getChannel());
+        }
+    }
+
+    /** Copies a stream (e.g. an APK asset) into an existing SAF document, replacing its contents. */
+    static long copyStreamToUri(ContentResolver resolver, InputStream src, Uri dest) throws IOException {
+        try (ParcelFileDescriptor pfd = openDescriptor(resolver, dest, "w");
+             FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+            return pump(Channels.newChannel(src), out.getChannel());
+        }
+    }
+
+    /** Copies a stream (e.g. a compressed APK asset) into a local file. */
+    static long copyStream(InputStream src, File dest, boolean sync) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(dest)) {
+            long total = pump(Channels.newChannel(src), out.getChannel());
+            if (sync) out.getFD().sync();
+            return total;
+        }
+    }
+
+    /** Copies one local file to another. */
+    static long copyFile(File src, File dest, boolean sync) throws IOException {
+        try (FileInputStream in = new FileInputStream(src);
+             FileOutputStream out = new FileOutputStream(dest)) {
+            long total = transfer(in.getChannel(), out.getChannel());
+            if (sync) out.getFD().sync();
+            return total;
+        }
+    }
+
+    /** CRC32 of a local file. */
+    static long crc32(File file) throws IOException {
+        // CRC32.update(ByteBuffer) needs API 26, so this one goes through a heap array
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            CRC32 crc = new CRC32();
+            int r;
+            while ((r = in.read(buf)) != -1) crc.update(buf, 0, r);
+            return crc.getValue();
+        }
+    }
+
+    private static ParcelFileDescriptor openDescriptor(ContentResolver resolver, Uri uri, String mode)
+            throws FileNotFoundException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, mode);
+        if (pfd == null) throw new FileNotFoundException("No descriptor from resolver for " + uri);
+        return pfd;
+    }
+
+    // Kernel-side copy from a seekable channel; falls back to pump() if the channel turns out not to be.
+    private static long transfer(FileChannel in, FileChannel out) throws IOException {
+        long size;
+        try {
+            size = in.size();
+        } catch (IOException e) {
+            return pump(in, out);
+        }
+
+        long position = 0;
+        while (position < size) {
+            long n = in.transferTo(position, Math.min(MAX_TRANSFER, size - position), out);
+            if (n <= 0) break; // file shrank underneath us
+            position += n;
+        }
+        return position;
+    }
+
+    // Sequential copy for pipes and other non-seekable descriptors.
+    private static long pump(ReadableByteChannel in, FileChannel out) throws IOException {
+        ByteBuffer buf = BUFFER.get();
+        long total = 0;
+        buf.clear();
+        while (in.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) total += out.write(buf);
+            buf.clear();
+        }
+        return total;
+    }
+}
@@ -5,41 +5,67 @@ import org.libsdl.app.SDLActivity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.provider.DocumentsContract;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.widget.Toast;
 
 import android.app.AlertDialog;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-
-import java.util.concurrent.CountDownLatch;
-
-import androidx.documentfile.provider.DocumentFile;
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.view.ViewGroup;
-import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.FrameLayout;
+import android.widget.LinearLayout;
 import android.view.LayoutInflater;
-import android.view.MotionEvent;
 import android.view.View;
-import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.view.InputDevice;
 import android.view.KeyEvent;
 
 public class MainActivity extends SDLActivity {
-    static { System.loadLibrary("Spaghettify"); }
+    static {
+        StartupTrace.processStarted("Process start to MainActivity");
+        long start = StartupTrace.begin();
+        System.loadLibrary("Spaghettify");
+        StartupTrace.end("loadLibrary Spaghettify", start);
+    }
 
     // ===== Constants / Prefs =====
     private static final String PREFS = "com.izzy.kart.prefs";
     private static final String KEY_USER_FOLDER_URI = "user_folder_uri";
+    private static final String KEY_MOD_STORE_BUDGET_MB = "mod_store_budget_mb";
+    private static final int DEFAULT_MOD_STORE_BUDGET_MB = 2048;
+    private static final String KEY_COMPILE_MODS = "compile_mods";
     private static final String TAG = "MainActivity";
 
     private static final int REQ_PICK_FOLDER = 1001;
@@ -47,15 +73,26 @@ public class MainActivity extends SDLActivity {
 
     // ===== State =====
     SharedPreferences preferences;
-    private static final CountDownLatch setupLatch = new CountDownLatch(1);
     private Uri userFolderUri; // Persisted SAF tree URI
+    private volatile boolean setupSignalled; // the engine has been told ready or cancelled
 
     // ===== Native methods =====
     public native void attachController();
     public native void detachController();
-    public native void setButton(int button, boolean value);
-    public native void setCameraState(int axis, float value);
-    public native void setAxis(int axis, short value);
+    private static native void nativeSetControllerBuffer(ByteBuffer state);
+    // Setup handshake: the engine blocks in GameEngine() until ready or cancelled is called after begin
+    private static native void nativeSetupBegin();
+    private static native void nativeSetupReady();
+    private static native void nativeSetupCancelled();
+    private static native void nativeRegisterArchiveFd(String path, int fd, long offset, long length);
+    private static native void nativeUnregisterArchiveFd(String path);
+    // File list and game version of an archive already checked here, so the engine doesn't index it again
+    private static native void nativeRegisterArchiveIndex(String path, long size, long modifiedTimeNanos,
+                                                          String[] names, boolean hasGameVersion, int gameVersion);
+    // Remounts the given mod archives (absolute paths) at the start of the next game frame
+    private static native void nativeReloadModArchives(String[] paths);
+    // Merges archives (absolute paths, in load order) into one; used by ModPack
+    static native boolean nativeMergeArchives(String[] inputs, String output);
 
     // ===== Save dir for the engine (internal only; no extra subfolder) =====
     public static String getSaveDir() {
@@ -97,236 +134,642 @@ public class MainActivity extends SDLActivity {
         }
     }
     
-    private void syncModsFromUserFolder() {
+    // Serialized: the startup pipeline, a folder selection and the mod watcher can all trigger a sync.
+    // Returns null if there is no mods folder or the sync failed.
+    private synchronized ModSync.Result syncModsFromUserFolder(SafIndex userIndex) {
         try {
-            DocumentFile userRoot = DocumentFile.fromTreeUri(this, userFolderUri);
-            if (userRoot == null) return;
-            
-            DocumentFile userModsFolder = userRoot.findFile("mods");
+            SafIndex.Node userModsFolder = userIndex.find(userIndex.root(), "mods");
             if (userModsFolder == null || !userModsFolder.isDirectory()) {
                 Log.i(TAG, "No mods folder found in user directory");
-                return;
+                return null;
             }
             
             File internalModsFolder = new File(getFilesDir(), "mods");
-            if (!internalModsFolder.exists()) {
-                internalModsFolder.mkdirs();
-            }
-            
-            // Clear existing mods in internal storage first
-            clearDirectory(internalModsFolder);
-            
-            // Copy all files from user mods folder to internal mods folder
-            copyModsRecursively(userModsFolder, internalModsFolder);
+
+            // Unreferenced mod files are kept for reuse until the store outgrows its budget
+            ModStore store = openModStore();
+
+            // New archives are added to the profile enabled; disabled ones aren't synced (their blobs stay cached)
+            File profileFile = new File(getFilesDir(), ModProfile.FILE_NAME);
+            ModProfile profile = ModProfile.load(profileFile);
+            if (profile.reconcile(ModSync.listArchives(userIndex, userModsFolder))) profile.save(profileFile);
+
+            // Only copy what changed since the last launch; the manifest lives inside the internal mods folder
+            long start = StartupTrace.begin();
+            ModSync.Result result = new ModSync(getContentResolver(), internalModsFolder, store)
+                    .sync(userIndex, userModsFolder, profile::includes);
+            StartupTrace.end("ModSync.sync", start);
+
+            Map<String, ModSync.Entry> manifest =
+                    ModSync.readManifest(new File(internalModsFolder, ModSync.MANIFEST_NAME));
+            start = StartupTrace.begin();
+            ModConflicts.update(internalModsFolder, profile.enabled(), manifest,
+                    new File(getFilesDir(), ModConflicts.FILE_NAME));
+            StartupTrace.end("ModConflicts.update", start);
+            start = StartupTrace.begin();
+            ModPack.update(getFilesDir(), internalModsFolder, profile.enabled(), manifest,
+                    preferences.getBoolean(KEY_COMPILE_MODS, false));
+            StartupTrace.end("ModPack.update", start);
             
-            Log.i(TAG, "Mods synced from user folder to internal storage");
+            Log.i(TAG, "Mods synced from user folder to internal storage: " + result);
+            return result;
             
         } catch (Exception e) {
             Log.e(TAG, "Error syncing mods from user folder", e);
+            return null;
         }
     }
-    
-    private void clearDirectory(File dir) {
-        if (dir.exists() && dir.isDirectory()) {
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        clearDirectory(file);
-                    }
-                    file.delete();
-                }
+
+    private ModStore openModStore() {
+        long budget = preferences.getInt(KEY_MOD_STORE_BUDGET_MB, DEFAULT_MOD_STORE_BUDGET_MB) * 1024L * 1024L;
+        return new ModStore(new File(getFilesDir(), "mod_store"), budget);
+    }
+
+    // Stamps the store blobs behind mod archives the engine just mounted, so eviction keeps recently loaded mods.
+    // Synchronized with the sync, since opening the store clears its temp files.
+    private synchronized void markModsLoaded(List<String> relPaths) {
+        Map<String, ModSync.Entry> manifest =
+                ModSync.readManifest(new File(new File(getFilesDir(), "mods"), ModSync.MANIFEST_NAME));
+        List<String> blobs = new ArrayList<>();
+        for (String relPath : relPaths) {
+            ModSync.Entry entry = manifest.get(relPath);
+            if (entry != null && entry.blob != null) blobs.add(entry.blob);
+        }
+        if (!blobs.isEmpty()) openModStore().markLoaded(blobs);
+    }
+
+    private List<String> enabledMods() {
+        return ModProfile.load(new File(getFilesDir(), ModProfile.FILE_NAME)).enabled();
+    }
+
+    // ===== Live mod reload =====
+    private ModWatcher modWatcher;
+    private volatile boolean modPackMounted; // the engine mounted mod_pack.o2r instead of the mods folder
+    private final ExecutorService modReloadExecutor = Executors.newSingleThreadExecutor();
+
+    // Watches the user's mods folder while the game runs; changed archives are remounted without a restart.
+    private void startModWatcher(SafIndex userIndex) {
+        if (modWatcher != null || userFolderUri == null) return;
+
+        SafIndex.Node userModsFolder = userIndex.find(userIndex.root(), "mods");
+        if (userModsFolder == null || !userModsFolder.isDirectory()) {
+            Log.i(TAG, "No mods folder to watch");
+            return;
+        }
+
+        String userPath = getUserFolderPath();
+        File modsPath = (userPath != null) ? new File(userPath, "mods") : null;
+        final Uri treeUri = userFolderUri;
+        modWatcher = new ModWatcher(getContentResolver(), treeUri, userModsFolder.documentId, modsPath,
+                () -> modReloadExecutor.execute(() -> reloadChangedMods(treeUri)));
+        modWatcher.start();
+    }
+
+    private void stopModWatcher() {
+        if (modWatcher != null) {
+            modWatcher.stop();
+            modWatcher = null;
+        }
+    }
+
+    private void reloadChangedMods(Uri treeUri) {
+        File pack = new File(getFilesDir(), ModPack.FILE_NAME);
+        long packStamp = pack.lastModified();
+        File conflictsFile = new File(getFilesDir(), ModConflicts.FILE_NAME);
+        List<String> leftOut = ModConflicts.shadowed(conflictsFile); // what the engine may not have mounted
+
+        // A fresh index; the cached listings predate the change
+        ModSync.Result result = syncModsFromUserFolder(new SafIndex(getContentResolver(), treeUri));
+        if (modWatcher != null) modWatcher.rescanDirectories();
+        if (result == null) return;
+
+        File internalModsFolder = new File(getFilesDir(), "mods");
+        if (modPackMounted) {
+            if (pack.isFile()) {
+                if (pack.lastModified() == packStamp) return;
+                nativeReloadModArchives(new String[] { pack.getAbsolutePath() });
+                markModsLoaded(enabledMods()); // the pack is built from them
+                showToast("Reloaded mod pack");
+                return;
+            }
+            // Compiling was turned off: unmount the pack and mount the mods themselves
+            List<String> enabled = enabledMods();
+            List<String> paths = new ArrayList<>();
+            paths.add(pack.getAbsolutePath());
+            for (String relPath : enabled) {
+                paths.add(new File(internalModsFolder, relPath).getAbsolutePath());
             }
+            modPackMounted = false;
+            nativeReloadModArchives(paths.toArray(new String[0]));
+            markModsLoaded(enabled);
+            showToast("Reloaded " + (paths.size() - 1) + " mod archive(s)");
+            return;
+        }
+        // A mod left out for being overridden entirely has to be mounted once that stops being the case
+        Set<String> candidates = new LinkedHashSet<>(result.changed);
+        List<String> enabled = enabledMods();
+        List<String> stillShadowed = ModConflicts.shadowed(conflictsFile);
+        for (String relPath : leftOut) {
+            if (enabled.contains(relPath) && !stillShadowed.contains(relPath)) candidates.add(relPath);
         }
+        if (candidates.isEmpty()) return;
+
+        List<String> relPaths = new ArrayList<>();
+        List<String> archives = new ArrayList<>();
+        for (String relPath : candidates) {
+            String lower = relPath.toLowerCase();
+            // Same extensions GameEngine mounts from the mods folder
+            if (lower.endsWith(".o2r") || lower.endsWith(".zip")) {
+                relPaths.add(relPath);
+                archives.add(new File(internalModsFolder, relPath).getAbsolutePath());
+            }
+        }
+        if (archives.isEmpty()) return;
+
+        nativeReloadModArchives(archives.toArray(new String[0]));
+        markModsLoaded(relPaths);
+        showToast("Reloaded " + archives.size() + " mod archive(s)");
     }
-    
-    private void copyModsRecursively(DocumentFile sourceDir, File destDir) {
-        try {
-            DocumentFile[] files = sourceDir.listFiles();
-            if (files == null) return;
-            
-            for (DocumentFile file : files) {
-                String fileName = file.getName();
-                if (fileName == null) continue;
-                
-                File destFile = new File(destDir, fileName);
-                
-                if (file.isDirectory()) {
-                    // Create directory and recurse
-                    destFile.mkdirs();
-                    copyModsRecursively(file, destFile);
-                } else {
-                    // Copy file
-                    try (InputStream in = getContentResolver().openInputStream(file.getUri());
-                         FileOutputStream out = new FileOutputStream(destFile)) {
-                        byte[] buf = new byte[8192];
-                        int r;
-                        while ((r = in.read(buf)) != -1) { out.write(buf, 0, r); }
-                        out.flush();
-                        Log.i(TAG, "Copied mod file: " + fileName);
+
+    // ===== Mod profile =====
+    // Opened from "Manage Mods" in the game menu or by long-pressing the controls toggle. Disabled mods stay in the
+    // user's folder but aren't synced or mounted.
+    private void showModProfileDialog() {
+        final File profileFile = new File(getFilesDir(), ModProfile.FILE_NAME);
+        final ModProfile profile = ModProfile.load(profileFile);
+        final List<ModProfile.Mod> mods = profile.mods();
+        if (mods.isEmpty()) {
+            showToast("No mods found in your mods folder.");
+            return;
+        }
+
+        final List<String> initialOrder = new ArrayList<>();
+        for (ModProfile.Mod mod : mods) initialOrder.add(mod.path);
+        Map<String, ModConflicts.Summary> conflicts =
+                ModConflicts.summarize(new File(getFilesDir(), ModConflicts.FILE_NAME));
+        View view = getLayoutInflater().inflate(R.layout.mod_profile, null);
+        fillModList(view.findViewById(R.id.mod_list), mods, conflicts);
+
+        final boolean compiled = preferences.getBoolean(KEY_COMPILE_MODS, false);
+        new AlertDialog.Builder(this, R.style.RoundedDialog)
+            .setTitle("Mods (later ones win conflicts)")
+            .setView(view)
+            .setPositiveButton("Apply", (d, w) -> {
+                List<String> order = new ArrayList<>();
+                for (ModProfile.Mod mod : mods) order.add(mod.path);
+                final boolean reordered = !order.equals(initialOrder);
+                final Uri treeUri = userFolderUri;
+                modReloadExecutor.execute(() -> {
+                    try {
+                        profile.save(profileFile);
                     } catch (IOException e) {
-                        Log.e(TAG, "Failed to copy mod file: " + fileName, e);
+                        Log.e(TAG, "Saving mod profile failed", e);
+                        showToast("Could not save mod selection.");
+                        return;
                     }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error in copyModsRecursively", e);
+                    // Newly enabled mods are mounted after the others until the next launch applies the full order
+                    if (treeUri != null) reloadChangedMods(treeUri);
+                    if (reordered) showToast("The new load order applies from the next launch.");
+                });
+            })
+            .setNeutralButton(compiled ? "Compile: On" : "Compile: Off", (d, w) -> {
+                boolean compile = !compiled;
+                preferences.edit().putBoolean(KEY_COMPILE_MODS, compile).apply();
+                // Building the pack starts now; the engine switches to it at the next launch
+                showToast(compile ? "Mods will load as one pack from the next launch." : "Mod pack disabled.");
+                final Uri treeUri = userFolderUri;
+                if (treeUri != null) modReloadExecutor.execute(() -> reloadChangedMods(treeUri));
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
+    // One row per mod: a checkbox to enable it and arrows to move it in the load order. Edits the list in place.
+    private void fillModList(LinearLayout list, List<ModProfile.Mod> mods, Map<String, ModConflicts.Summary> conflicts) {
+        list.removeAllViews();
+        for (int i = 0; i < mods.size(); i++) {
+            final int index = i;
+            final ModProfile.Mod mod = mods.get(i);
+            View row = getLayoutInflater().inflate(R.layout.mod_profile_row, list, false);
+
+            // Counts are from the last sync and don't follow moves until the next one
+            ModConflicts.Summary summary = conflicts.get(mod.path);
+            CheckBox enabled = row.findViewById(R.id.mod_enabled);
+            enabled.setText(summary == null ? mod.path
+                    : mod.path + " (overrides " + summary.overrides + ", overridden " + summary.overridden + ")");
+            enabled.setChecked(mod.enabled);
+            enabled.setOnCheckedChangeListener((b, isChecked) -> mod.enabled = isChecked);
+
+            View up = row.findViewById(R.id.mod_up);
+            up.setEnabled(index > 0);
+            up.setOnClickListener(v -> {
+                Collections.swap(mods, index, index - 1);
+                fillModList(list, mods, conflicts);
+            });
+            View down = row.findViewById(R.id.mod_down);
+            down.setEnabled(index < mods.size() - 1);
+            down.setOnClickListener(v -> {
+                Collections.swap(mods, index, index + 1);
+                fillModList(list, mods, conflicts);
+            });
+            list.addView(row);
         }
     }
 
+    // Called by the engine from "Manage Mods" in the menu
+    private void ShowModManager() {
+        runOnUiThread(this::showModProfileDialog);
+    }
+
     // ===== Lifecycle =====
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long start = StartupTrace.begin();
         preferences = getSharedPreferences(PREFS, Context.MODE_PRIVATE);
         userFolderUri = getUserFolderUri();
 
+        long sdlStart = StartupTrace.begin();
         super.onCreate(savedInstanceState);
+        nativeSetupBegin(); // the native library is loaded now, and the engine thread isn't running yet
+        StartupTrace.end("SDLActivity.onCreate", sdlStart);
+        long overlayStart = StartupTrace.begin();
         setupControllerOverlay();
         attachController();
-
-        // Seed internal directory with assets if they exist (optional)
-        seedInternalFromAssetsIfPresent();
+        StartupTrace.end("Controller overlay", overlayStart);
 
         File internal = getFilesDir();
         File external = getExternalFilesDir(null);
         Log.i(TAG, "Internal root: " + internal);
         Log.i(TAG, "External root: " + external);
 
-        // Check for mk64.o2r in internal storage first
-        File internalMk64 = new File(internal, "mk64.o2r");
-        
-        // If not in internal, check if it exists in user's chosen folder and copy it
-        if (!internalMk64.exists() && userFolderUri != null) {
-            DocumentFile userRoot = DocumentFile.fromTreeUri(this, userFolderUri);
-            if (userRoot != null) {
-                DocumentFile userMk64 = userRoot.findFile("mk64.o2r");
-                if (userMk64 != null && userMk64.exists()) {
-                    Log.i(TAG, "Found mk64.o2r in user folder, copying to internal storage");
-                    try (InputStream in = getContentResolver().openInputStream(userMk64.getUri());
-                         FileOutputStream out = new FileOutputStream(internalMk64)) {
-                        byte[] buf = new byte[8192];
-                        int r;
-                        while ((r = in.read(buf)) != -1) { out.write(buf, 0, r); }
-                        out.flush();
-                        out.getFD().sync();
-                        Log.i(TAG, "mk64.o2r copied from user folder to internal storage");
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to copy mk64.o2r from user folder", e);
+        runStartupPipeline();
+        StartupTrace.end("MainActivity.onCreate", start);
+    }
+
+    @Override
+    public void loadLibraries() {
+        long start = StartupTrace.begin();
+        super.loadLibraries();
+        StartupTrace.end("SDLActivity.loadLibraries", start);
+    }
+
+    // ===== Startup pipeline =====
+    private View startupProgressView;
+    private ProgressBar startupProgressBar;
+    private TextView startupProgressText;
+
+    // Prepares everything the engine reads at boot off the UI thread; SDL_main waits for it to finish.
+    private void runStartupPipeline() {
+        final File internalMk64 = new File(getFilesDir(), "mk64.o2r");
+        // One listing of the user folder shared by the import and mod sync stages
+        final SafIndex userIndex = (userFolderUri != null) ? new SafIndex(getContentResolver(), userFolderUri) : null;
+
+        SDLActivity.closeMainThreadGate();
+        showStartupProgress();
+
+        new StartupPipeline()
+            // Seed internal directory with assets if they exist (optional)
+            .stage("seed", this::seedInternalFromAssetsIfPresent)
+            // If not in internal, check if it exists in user's chosen folder and copy it
+            .stage("import", () -> importMk64FromUserFolder(userIndex, internalMk64))
+            // Always sync mods folder from user's chosen folder (after seeding, which may create it)
+            .stage("mods", () -> { if (userIndex != null) syncModsFromUserFolder(userIndex); }, "seed")
+            .stage("verify", () -> mk64Problem = verifyMk64(internalMk64), "import")
+            // Only starts the prewarm thread; it keeps reading while the mod sync and SDL init run
+            .stage("prewarm", () -> startArchivePrewarm(internalMk64), "seed", "verify")
+            .start(new StartupPipeline.Listener() {
+                @Override
+                public void onStageStarted(String stage, int completed, int total) {
+                    updateStartupProgress(stageLabel(stage), completed, total);
+                }
+
+                @Override
+                public void onStageFinished(String stage, int completed, int total) {
+                    updateStartupProgress(null, completed, total);
+                }
+
+                @Override
+                public void onPipelineFinished() {
+                    hideStartupProgress();
+
+                    // Now check if mk64.o2r exists in internal storage
+                    if (mk64Problem != null) {
+                        showMk64Problem(mk64Problem);
+                    } else if (!isMk64Available(internalMk64)) {
+                        Log.i(TAG, "mk64.o2r not found. Prompting for folder.");
+                        promptForUserFolder();
+                    } else {
+                        Log.i(TAG, "mk64.o2r available, game should start normally.");
+                        signalSetupReady();
                     }
+                    // GameEngine prefers the pack over the mods folder when it exists
+                    modPackMounted = new File(getFilesDir(), ModPack.FILE_NAME).isFile();
+                    if (userIndex != null) startModWatcher(userIndex);
+                    StartupTrace.instant("SDL_main released");
+                    SDLActivity.openMainThreadGate();
                 }
-            }
-        }
-        
-        // Always sync mods folder from user's chosen folder to internal storage
-        if (userFolderUri != null) {
-            syncModsFromUserFolder();
-        }
-        
-        // Now check if mk64.o2r exists in internal storage
-        if (!internalMk64.exists()) {
-            Log.i(TAG, "mk64.o2r not found. Prompting for folder.");
-            promptForUserFolder();
-        } else {
-            Log.i(TAG, "mk64.o2r found in internal storage, game should start normally.");
-        }
+            });
     }
 
-    public static void waitForSetupFromNative() {
-        try { setupLatch.await(); } catch (InterruptedException ignored) {}
+    // mk64.o2r is read straight from the user's folder when the provider hands out a seekable descriptor.
+    // The descriptor is detached and stays open for the life of the process; the engine dup()s it.
+    private static int mk64InPlaceFd = -1;
+
+    private boolean isMk64Available(File internalMk64) {
+        return mk64InPlaceFd >= 0 || internalMk64.exists();
     }
 
-    // ===== Asset seeding (optional, safe if assets not present) =====
-    private boolean assetExists(String name) {
-        try { getAssets().open(name).close(); return true; }
-        catch (IOException e) { return false; }
+    private void importMk64FromUserFolder(SafIndex userIndex, File internalMk64) {
+        if (mk64InPlaceFd >= 0) return;
+
+        SafIndex.Node userMk64 = (userIndex != null) ? userIndex.find(userIndex.root(), "mk64.o2r") : null;
+        if (userMk64 != null && userMk64.isDirectory()) userMk64 = null;
+
+        if (userMk64 != null && openMk64InPlace(userMk64.uri, internalMk64)) {
+            // A copy made by an older version (or a previous fallback) is now just wasted space
+            if (internalMk64.exists() && internalMk64.delete()) {
+                ResumableImport.forget(internalMk64);
+                Log.i(TAG, "Removed internal copy of mk64.o2r, reading it from the user folder instead");
+            }
+            return;
+        }
+        checkInternalMk64(internalMk64, userMk64);
+        if (internalMk64.exists() || userMk64 == null) return;
+
+        Log.i(TAG, "Found mk64.o2r in user folder, copying to internal storage");
+        long start = StartupTrace.begin();
+        try {
+            ResumableImport.Result result = ResumableImport.importFrom(getContentResolver(), userMk64.uri, internalMk64);
+            Log.i(TAG, "mk64.o2r copied from user folder to internal storage: " + result);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to copy mk64.o2r from user folder", e);
+        }
+        StartupTrace.end("Copy mk64.o2r", start);
     }
 
-    private boolean assetDirExists(String dir) {
-        try { String[] list = getAssets().list(dir); return list != null && list.length > 0; }
-        catch (IOException e) { return false; }
+    // Copies are written to a temp file and renamed, so a present mk64.o2r is complete. Older versions wrote
+    // straight to the final path, though: a copy of theirs without a fingerprint is only kept if it matches
+    // the size of the original (when there is one to compare with), and is fingerprinted once.
+    private void checkInternalMk64(File internalMk64, SafIndex.Node userMk64) {
+        if (!internalMk64.exists() || ResumableImport.isVerified(internalMk64)) return;
+
+        if (userMk64 != null && userMk64.size >= 0 && internalMk64.length() != userMk64.size) {
+            Log.w(TAG, "Internal mk64.o2r is " + internalMk64.length() + " bytes, expected " + userMk64.size
+                    + "; discarding it as an interrupted copy");
+            internalMk64.delete();
+            return;
+        }
+        try {
+            Log.i(TAG, "Fingerprinted existing mk64.o2r: " + ResumableImport.adopt(internalMk64));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not fingerprint mk64.o2r", e);
+        }
     }
 
-    private void seedInternalFromAssetsIfPresent() {
-        File internal = getFilesDir();
+    // Why mk64.o2r was rejected during startup, reported once the pipeline is done
+    private volatile String mk64Problem;
+
+    // Checks mk64.o2r before the engine is told to open it and hands the engine its file list. An unusable
+    // copy is dropped (or, in the user folder, no longer read in place) so the user is asked for another.
+    // Returns why it can't be used, or null.
+    private String verifyMk64(File internalMk64) {
+        if (!isMk64Available(internalMk64)) return null;
+
+        long start = System.nanoTime();
+        ArchiveCheck.Result result;
+        long modifiedTime;
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(mk64InPlaceFd >= 0
+                ? ParcelFileDescriptor.fromFd(mk64InPlaceFd) // a dup; the original stays with the engine
+                : ParcelFileDescriptor.open(internalMk64, ParcelFileDescriptor.MODE_READ_ONLY))) {
+            // Before the check, so a file changed during it doesn't match what the engine opens
+            modifiedTime = modifiedTimeNanos(Os.fstat(in.getFD()));
+            result = ArchiveCheck.check(in.getChannel(), 0, -1);
+        } catch (IOException | ErrnoException e) {
+            Log.e(TAG, "Could not read mk64.o2r", e);
+            discardMk64(internalMk64);
+            return "it could not be read (" + e.getMessage() + ")";
+        }
 
-        // Prefer the real name: gamecontrollerdb.txt (but accept controllerdb.txt asset if that's what you ship)
-        File gcdb = new File(internal, "gamecontrollerdb.txt");
-        File cdb  = new File(internal, "controllerdb.txt");
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        if (!result.isValid()) {
+            Log.e(TAG, "mk64.o2r can't be used: " + result);
+            discardMk64(internalMk64);
+            return result.problem;
+        }
+        Log.i(TAG, "mk64.o2r checked in " + ms + " ms: " + result);
+        nativeRegisterArchiveIndex(internalMk64.getAbsolutePath(), result.archiveSize, modifiedTime, result.names(),
+                result.hasGameVersion, result.gameVersion);
+        return null;
+    }
 
-        if (!gcdb.exists() && !cdb.exists()) {
-            if (assetExists("gamecontrollerdb.txt")) {
-                copyAssetFile("gamecontrollerdb.txt", gcdb);
-            } else if (assetExists("controllerdb.txt")) {
-                copyAssetFile("controllerdb.txt", cdb);
-            } else {
-                Log.i(TAG, "No controller DB asset shipped.");
-            }
+    // The mtime as the engine stamps archives. st_mtim needs API 27; before that only whole seconds are known,
+    // which won't match a file with a sub-second mtime, so the engine just indexes mk64.o2r itself.
+    private static long modifiedTimeNanos(StructStat st) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            return st.st_mtim.tv_sec * 1_000_000_000L + st.st_mtim.tv_nsec;
         }
+        return st.st_mtime * 1_000_000_000L;
+    }
 
-        File spaghetti = new File(internal, "spaghetti.o2r");
-        Log.i(TAG, "Checking spaghetti.o2r - exists in internal: " + spaghetti.exists() + ", exists in assets: " + assetExists("spaghetti.o2r"));
-        if (!spaghetti.exists() && assetExists("spaghetti.o2r")) {
-            Log.i(TAG, "Copying spaghetti.o2r from assets to internal");
-            copyAssetFile("spaghetti.o2r", spaghetti);
-        } else if (!spaghetti.exists()) {
-            Log.w(TAG, "spaghetti.o2r not found in assets - this might be expected for development builds");
-            // List available assets for debugging
+    private void discardMk64(File internalMk64) {
+        if (mk64InPlaceFd >= 0) {
+            nativeUnregisterArchiveFd(internalMk64.getAbsolutePath());
             try {
-                String[] assets = getAssets().list("");
-                Log.i(TAG, "Available assets:");
-                for (String asset : assets) {
-                    Log.i(TAG, "  - " + asset);
-                }
+                ParcelFileDescriptor.adoptFd(mk64InPlaceFd).close();
             } catch (IOException e) {
-                Log.e(TAG, "Error listing assets", e);
+                Log.w(TAG, "Could not close mk64.o2r descriptor", e);
             }
+            mk64InPlaceFd = -1;
+        } else if (internalMk64.delete()) {
+            ResumableImport.forget(internalMk64);
+        }
+    }
+
+    private void showMk64Problem(String problem) {
+        runOnUiThread(() -> createPortraitDialog()
+            .setTitle("mk64.o2r can't be used")
+            .setMessage("The mk64.o2r that was found can't be loaded: " + problem
+                    + ".\n\nPick a working mk64.o2r file or use Torch to create a new one.")
+            .setCancelable(false)
+            .setPositiveButton("Select mk64.o2r File", (d, w) -> openFilePickerForMk64())
+            .setNegativeButton("Download Torch App", (d, w) -> openTorchDownload())
+            .show());
+    }
+
+    // Reads what the engine touches at boot into the page cache before it gets there
+    private void startArchivePrewarm(File internalMk64) {
+        // Debug builds can launch with --ez prewarm false to measure time-to-title without it
+        if (BuildConfig.DEBUG && !getIntent().getBooleanExtra("prewarm", true)) {
+            Log.i(TAG, "Archive prewarm disabled");
+            return;
         }
 
-        File modsDir = new File(internal, "mods");
-        if (!modsDir.exists() && assetDirExists("mods")) {
-            copyAssetFolderRecursive("mods", modsDir);
+        ArchivePrewarm prewarm = new ArchivePrewarm(new File(getFilesDir(), ArchivePrewarm.PROFILE_NAME));
+        if (mk64InPlaceFd >= 0) {
+            prewarm.add(ArchivePrewarm.Target.ofDescriptor(internalMk64.getAbsolutePath(), mk64InPlaceFd, 0, -1));
+        } else if (internalMk64.isFile()) {
+            prewarm.add(ArchivePrewarm.Target.ofFile(internalMk64));
+        }
+        synchronized (bundledArchives) {
+            for (ArchivePrewarm.Target target : bundledArchives.values()) prewarm.add(target);
         }
+        prewarm.start();
+    }
+
+    // Called by the engine (WriteStartupTrace) on its thread once it has drawn the first frame
+    static void onStartupTraceFinished(String nativeEvents) {
+        new Thread(() -> StartupTrace.finish(new File(getSaveDir()), nativeEvents), "StartupTrace").start();
     }
 
-    private void copyAssetFile(String assetName, File destFile) {
+    // Called by the engine (GameEngine_OnTitleScreen) the first time the title screen comes up
+    static void onTitleScreen() {
+        long ms = SystemClock.elapsedRealtime() - android.os.Process.getStartElapsedRealtime();
+        Log.i(TAG, "Time to title screen: " + ms + " ms since process start (" + ArchivePrewarm.summary() + ")");
+    }
+
+    private boolean openMk64InPlace(Uri uri, File internalMk64) {
         try {
-            File parent = destFile.getParentFile();
-            if (parent != null && !parent.exists()) parent.mkdirs();
-            try (InputStream in = getAssets().open(assetName);
-                 FileOutputStream out = new FileOutputStream(destFile)) {
-                byte[] buffer = new byte[8192];
-                int read;
-                long total = 0;
-                while ((read = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                    total += read;
-                }
-                out.flush();
-                out.getFD().sync();
-                Log.i(TAG, "Seeded asset " + assetName + " (" + total + " bytes) -> " + destFile.getAbsolutePath());
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) return false;
+            if (!isSeekable(pfd)) {
+                Log.i(TAG, "Provider gave a non-seekable descriptor for mk64.o2r, falling back to a copy");
+                pfd.close();
+                return false;
             }
+            mk64InPlaceFd = pfd.detachFd();
+            nativeRegisterArchiveFd(internalMk64.getAbsolutePath(), mk64InPlaceFd, 0, -1);
+            Log.i(TAG, "Reading mk64.o2r in place from the user folder (fd " + mk64InPlaceFd + ")");
+            return true;
         } catch (IOException e) {
-            Log.e(TAG, "copyAssetFile failed for " + assetName, e);
+            Log.w(TAG, "Could not open mk64.o2r in place", e);
+            return false;
         }
     }
 
-    private void copyAssetFolderRecursive(String assetDir, File destDir) {
+    private static boolean isSeekable(ParcelFileDescriptor pfd) {
+        if (pfd.getStatSize() < 0) return false; // pipe or socket
         try {
-            if (!destDir.exists()) destDir.mkdirs();
-            String[] kids = getAssets().list(assetDir);
-            if (kids == null) return;
-            for (String name : kids) {
-                String assetPath = assetDir + "/" + name;
-                String[] sub = getAssets().list(assetPath);
-                if (sub != null && sub.length > 0) {
-                    copyAssetFolderRecursive(assetPath, new File(destDir, name));
-                } else {
-                    copyAssetFile(assetPath, new File(destDir, name));
-                }
+            Os.lseek(pfd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static String stageLabel(String stage) {
+        switch (stage) {
+            case "seed":   return "Preparing game files...";
+            case "import": return "Importing mk64.o2r...";
+            case "mods":   return "Syncing mods...";
+            case "verify": return "Checking game files...";
+            case "prewarm": return "Preparing game files...";
+            default:       return stage;
+        }
+    }
+
+    private void showStartupProgress() {
+        startupProgressView = getLayoutInflater().inflate(R.layout.startup_progress, null);
+        startupProgressBar = startupProgressView.findViewById(R.id.startup_progress_bar);
+        startupProgressText = startupProgressView.findViewById(R.id.startup_progress_text);
+        ViewGroup rootView = (ViewGroup) getWindow().getDecorView().findViewById(android.R.id.content);
+        rootView.addView(startupProgressView, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+    }
+
+    private void updateStartupProgress(String label, int completed, int total) {
+        if (startupProgressView == null) return;
+        startupProgressBar.setProgress(total > 0 ? completed * 100 / total : 100);
+        if (label != null) startupProgressText.setText(label);
+    }
+
+    private void hideStartupProgress() {
+        if (startupProgressView == null) return;
+        ((ViewGroup) startupProgressView.getParent()).removeView(startupProgressView);
+        startupProgressView = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Unblock the engine if it is still waiting for mk64.o2r, otherwise SDLThread can never be joined
+        if (!setupSignalled) signalSetupCancelled();
+        stopModWatcher();
+        modReloadExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    private void signalSetupReady() {
+        setupSignalled = true;
+        nativeSetupReady();
+        // The engine mounts the synced mods (or the pack built from them) as it starts
+        if (!modReloadExecutor.isShutdown()) modReloadExecutor.execute(() -> markModsLoaded(enabledMods()));
+    }
+
+    private void signalSetupCancelled() {
+        setupSignalled = true;
+        nativeSetupCancelled();
+    }
+
+    // ===== Asset seeding (optional, safe if assets not present) =====
+    private boolean assetExists(String name) {
+        return AssetManifest.get(getAssets()).exists(name);
+    }
+
+    private void seedInternalFromAssetsIfPresent() {
+        File internal = getFilesDir();
+        Set<String> servedInPlace = new HashSet<>();
+
+        File spaghetti = new File(internal, "spaghetti.o2r");
+        long start = StartupTrace.begin();
+        boolean registered = registerBundledArchive("spaghetti.o2r", spaghetti);
+        StartupTrace.end("Register bundled spaghetti.o2r", start);
+        if (registered) {
+            servedInPlace.add("spaghetti.o2r");
+            // Served from the APK; a copy seeded by an older version would only shadow the bundled one
+            if (spaghetti.exists() && spaghetti.delete()) {
+                Log.i(TAG, "Removed internal copy of spaghetti.o2r, reading it from the APK instead");
             }
-            Log.i(TAG, "Seeded asset dir " + assetDir + " -> " + destDir.getAbsolutePath());
+        }
+
+        // Controller DB, mods/ and (only if it got compressed into the APK) spaghetti.o2r
+        start = StartupTrace.begin();
+        try {
+            new AssetSeeder(getAssets(), internal).seed(servedInPlace);
         } catch (IOException e) {
-            Log.e(TAG, "copyAssetFolderRecursive failed for " + assetDir, e);
+            Log.e(TAG, "Seeding bundled assets failed", e);
+        }
+        StartupTrace.end("AssetSeeder.seed", start);
+
+        if (servedInPlace.isEmpty() && !spaghetti.exists()) {
+            Log.w(TAG, "spaghetti.o2r not found in assets - this might be expected for development builds");
+            // List available assets for debugging
+            Log.i(TAG, "Available assets:");
+            for (AssetManifest.Entry asset : AssetManifest.get(getAssets()).list("")) {
+                Log.i(TAG, "  - " + asset.path);
+            }
+        }
+    }
+
+    // Detached descriptors of APK assets handed to the engine, kept open for the life of the process
+    private static final Map<String, ArchivePrewarm.Target> bundledArchives = new HashMap<>();
+
+    // Lets the engine read an uncompressed APK asset by fd + offset + length instead of copying it out.
+    // Returns false if the asset is missing or stored compressed.
+    private boolean registerBundledArchive(String assetName, File enginePath) {
+        synchronized (bundledArchives) {
+            if (bundledArchives.containsKey(assetName)) return true;
+            try {
+                AssetFileDescriptor afd = getAssets().openFd(assetName);
+                int fd = afd.getParcelFileDescriptor().detachFd();
+                nativeRegisterArchiveFd(enginePath.getAbsolutePath(), fd, afd.getStartOffset(), afd.getLength());
+                bundledArchives.put(assetName, ArchivePrewarm.Target.ofDescriptor(
+                        enginePath.getAbsolutePath(), fd, afd.getStartOffset(), afd.getLength()));
+                Log.i(TAG, "Serving " + assetName + " from the APK (offset " + afd.getStartOffset()
+                        + ", " + afd.getLength() + " bytes)");
+                return true;
+            } catch (IOException e) {
+                Log.i(TAG, assetName + " can't be read in place from the APK: " + e.getMessage());
+                return false;
+            }
         }
     }
 
@@ -342,21 +785,6 @@ public class MainActivity extends SDLActivity {
         runOnUiThread(() -> Toast.makeText(this, msg, Toast.LENGTH_SHORT).show());
     }
 
-    private void restartApp() {
-        try {
-            Intent i = getPackageManager().getLaunchIntentForPackage(getPackageName());
-            if (i != null) {
-                i.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(i);
-                finish();
-                System.exit(0);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "restartApp", e);
-            showToast("Please restart the app manually");
-        }
-    }
-
     // ===== Folder / File pickers =====
     private void promptForUserFolder() {
         runOnUiThread(() -> createPortraitDialog()
@@ -385,6 +813,22 @@ public class MainActivity extends SDLActivity {
         startActivityForResult(i, REQ_PICK_MK64);
     }
 
+    // The user backed out of a picker while the engine is still waiting for mk64.o2r
+    private void onSetupPickerCancelled() {
+        if (isMk64Available(new File(getFilesDir(), "mk64.o2r"))) return;
+
+        runOnUiThread(() -> createPortraitDialog()
+            .setTitle("mk64.o2r is required")
+            .setMessage("Spaghetti Kart can't start without mk64.o2r.")
+            .setCancelable(false)
+            .setPositiveButton("Choose Again", (d, w) -> promptForUserFolder())
+            .setNegativeButton("Exit", (d, w) -> {
+                signalSetupCancelled();
+                finish();
+            })
+            .show());
+    }
+
     private void openTorchDownload() {
         try {
             Intent browser = new Intent(Intent.ACTION_VIEW, Uri.parse("https://github.com/izzy2lost/Torch/releases"));
@@ -409,7 +853,12 @@ public class MainActivity extends SDLActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if (resultCode != RESULT_OK || data == null) return;
+        if (resultCode != RESULT_OK || data == null) {
+            if (requestCode == REQ_PICK_FOLDER || requestCode == REQ_PICK_MK64) {
+                onSetupPickerCancelled();
+            }
+            return;
+        }
 
         if (requestCode == REQ_PICK_FOLDER) {
             handleFolderSelection(data.getData(), data.getFlags());
@@ -440,22 +889,30 @@ public class MainActivity extends SDLActivity {
         userFolderUri = treeUri;
         showToast("Folder selected.");
 
-        DocumentFile userRoot = DocumentFile.fromTreeUri(this, treeUri);
-        if (userRoot == null) {
+        SafIndex userIndex;
+        try {
+            userIndex = new SafIndex(getContentResolver(), treeUri);
+        } catch (IllegalArgumentException e) {
             showToast("Cannot access the selected folder.");
             return;
         }
+        SafIndex.Node userRoot = userIndex.root();
 
-        if (!verifyWritable(userRoot)) {
+        if (!verifyWritable(userIndex, userRoot)) {
             showToast("Can't write there. Try Downloads or a folder you create under Internal storage.");
             return;
         }
 
-        boolean anyCopied = copyFromBestSourceToSaf(userRoot);
+        // The export and import below do provider I/O; keep them off the UI thread
+        new Thread(() -> exportAndImport(userIndex, userRoot, treeUri), "FolderSetup").start();
+    }
+
+    private void exportAndImport(SafIndex userIndex, SafIndex.Node userRoot, Uri treeUri) {
+        boolean anyCopied = copyFromBestSourceToSaf(userIndex, userRoot, treeUri);
 
         // Check if mk64.o2r exists in the user's chosen folder
-        DocumentFile mk64InUserFolder = userRoot.findFile("mk64.o2r");
-        if (mk64InUserFolder == null || !mk64InUserFolder.exists()) {
+        SafIndex.Node mk64InUserFolder = userIndex.find(userRoot, "mk64.o2r");
+        if (mk64InUserFolder == null) {
             runOnUiThread(() -> createPortraitDialog()
                 .setTitle("mk64.o2r not found in selected folder")
                 .setMessage("Pick an existing mk64.o2r file or use Torch to create one. It will be copied to your selected folder.")
@@ -464,27 +921,41 @@ public class MainActivity extends SDLActivity {
                 .setNegativeButton("Select mk64.o2r File", (d, w) -> openFilePickerForMk64())
                 .show());
         } else {
-            final String msg = anyCopied ? "Files copied. Restart to load the game."
+            File internalMk64 = new File(getFilesDir(), "mk64.o2r");
+            importMk64FromUserFolder(userIndex, internalMk64);
+            String problem = verifyMk64(internalMk64);
+            syncModsFromUserFolder(userIndex);
+            if (problem != null) {
+                showMk64Problem(problem);
+            } else if (isMk64Available(internalMk64)) {
+                signalSetupReady();
+            }
+            runOnUiThread(() -> {
+                // The folder may have changed; watch the new one
+                stopModWatcher();
+                startModWatcher(userIndex);
+            });
+
+            final String msg = anyCopied ? "Files copied. Loading the game."
                                          : "Nothing copied (sources not found).";
             runOnUiThread(() -> createPortraitDialog()
                 .setTitle("Copy complete")
                 .setMessage(msg)
-                .setPositiveButton("Restart", (d, w) -> restartApp())
-                .setNegativeButton("Later", null)
+                .setPositiveButton("OK", null)
                 .show());
         }
     }
 
-    private boolean verifyWritable(DocumentFile dir) {
+    private boolean verifyWritable(SafIndex index, SafIndex.Node dir) {
         try {
-            DocumentFile tmp = dir.createFile("application/octet-stream", ".saf_write_test");
+            SafIndex.Node tmp = index.createFile(dir, "application/octet-stream", ".saf_write_test");
             if (tmp == null) return false;
-            OutputStream os = getContentResolver().openOutputStream(tmp.getUri(), "w");
+            OutputStream os = getContentResolver().openOutputStream(tmp.uri, "w");
             if (os == null) return false;
             os.write(1);
             os.flush();
             os.close();
-            tmp.delete();
+            index.delete(dir, tmp);
             return true;
         } catch (Exception e) {
             Log.w(TAG, "verifyWritable failed: " + e);
@@ -521,33 +992,42 @@ public class MainActivity extends SDLActivity {
         return mods.exists() && mods.isDirectory() && mods.listFiles() != null && mods.listFiles().length > 0;
     }
 
-    private boolean copyFromBestSourceToSaf(DocumentFile userRoot) {
+    private boolean copyFromBestSourceToSaf(SafIndex index, SafIndex.Node userRoot, Uri treeUri) {
         File srcRoot = chooseBestSourceRoot();
         Log.i(TAG, "Copying from srcRoot=" + srcRoot);
 
-        int copied = 0;
+        SafExporter exporter = new SafExporter(getContentResolver(), index, treeUri);
 
         // gamecontrollerdb.txt (prefer this name), fall back to controllerdb.txt if that's what exists
         File gcdb = new File(srcRoot, "gamecontrollerdb.txt");
         File cdb  = new File(srcRoot, "controllerdb.txt");
-        if (gcdb.exists()) { if (copyFileToTree(gcdb, userRoot, "text/plain")) copied++; }
-        else if (cdb.exists()) { if (copyFileToTree(cdb, userRoot, "text/plain")) copied++; }
+        if (gcdb.exists()) exporter.addFile(gcdb, userRoot, "text/plain");
+        else if (cdb.exists()) exporter.addFile(cdb, userRoot, "text/plain");
         else Log.w(TAG, "No controller DB at " + srcRoot);
 
-        // spaghetti.o2r
+        // spaghetti.o2r (normally only inside the APK)
         File spaghetti = new File(srcRoot, "spaghetti.o2r");
-        if (spaghetti.exists()) { if (copyFileToTree(spaghetti, userRoot, "application/octet-stream")) copied++; }
+        if (spaghetti.exists()) exporter.addFile(spaghetti, userRoot, "application/octet-stream");
+        else if (assetExists("spaghetti.o2r")) exporter.addAsset(getAssets(), "spaghetti.o2r", userRoot, "application/octet-stream");
         else Log.w(TAG, "No spaghetti.o2r at " + srcRoot);
 
-        // mods
+        // mods (directories are created here, files stream in on the exporter's workers meanwhile)
         File modsSrc = new File(srcRoot, "mods");
         if (modsSrc.exists() && modsSrc.isDirectory()) {
-            if (copyFolderToTree(modsSrc, userRoot)) copied++;
+            exporter.addFolder(modsSrc, userRoot, ModSync.MANIFEST_NAME);
         } else Log.w(TAG, "No mods folder at " + srcRoot);
 
-        if (copied > 0) showToast("Copied " + copied + " item(s) to selected folder.");
-        else showToast("Nothing copied. Make sure files exist in app storage.");
-        return copied > 0;
+        SafExporter.Result result = exporter.finish();
+        if (!result.failed.isEmpty()) {
+            showToast("Copied " + result.files + " file(s), " + result.failed.size() + " failed: "
+                    + String.join(", ", result.failed.subList(0, Math.min(3, result.failed.size())))
+                    + (result.failed.size() > 3 ? ", ..." : ""));
+        } else if (result.anyCopied()) {
+            showToast("Copied " + result.files + " file(s) to selected folder.");
+        } else {
+            showToast("Nothing copied. Make sure files exist in app storage.");
+        }
+        return result.anyCopied();
     }
 
     // When user picks mk64.o2r via SAF, copy into INTERNAL (engine reads from here)
@@ -556,109 +1036,31 @@ public class MainActivity extends SDLActivity {
 
         File dest = new File(getFilesDir(), "mk64.o2r");
         showToast("Copying mk64.o2r...");
-        try (InputStream in = getContentResolver().openInputStream(selectedFileUri);
-             FileOutputStream out = new FileOutputStream(dest)) {
-            byte[] buf = new byte[8192];
-            int r;
-            long total = 0;
-            while ((r = in.read(buf)) != -1) { out.write(buf, 0, r); total += r; }
-            out.flush();
-            out.getFD().sync();
-            Log.i(TAG, "mk64.o2r copied to internal (" + total + " bytes): " + dest.getAbsolutePath());
-
-            runOnUiThread(() -> createPortraitDialog()
-                .setTitle("mk64.o2r ready")
-                .setMessage("mk64.o2r copied. Restart to load the game.")
-                .setPositiveButton("Restart", (d, w) -> restartApp())
-                .show());
-        } catch (IOException e) {
-            Log.e(TAG, "handleRomFileSelection", e);
-            showToast("Failed to copy mk64.o2r: " + e.getMessage());
-        }
-    }
-
-    // ===== SAF copy helpers =====
-    private boolean copyFileToTree(File src, DocumentFile dstParent, String mimeGuess) {
-        try {
-            // Overwrite if present
-            DocumentFile existing = findChild(dstParent, src.getName());
-            if (existing != null && existing.isFile()) existing.delete();
-
-            String mime = (mimeGuess != null) ? mimeGuess : guessMime(src.getName());
-            DocumentFile dest = dstParent.createFile(mime, src.getName());
-            if (dest == null) {
-                Log.e(TAG, "Failed to create file in tree: " + src.getName());
-                return false;
-            }
-            try (InputStream in = new FileInputStream(src);
-                 OutputStream out = getContentResolver().openOutputStream(dest.getUri(), "w")) {
-                if (out == null) throw new IOException("Null OutputStream from resolver");
-                byte[] buf = new byte[8192];
-                int r;
-                long total = 0;
-                while ((r = in.read(buf)) != -1) {
-                    out.write(buf, 0, r);
-                    total += r;
+        new Thread(() -> {
+            try {
+                // Picking the same file again after an interrupted copy picks up where it left off
+                ResumableImport.Result result = ResumableImport.importFrom(getContentResolver(), selectedFileUri, dest);
+                Log.i(TAG, "mk64.o2r copied to internal: " + result);
+                String problem = verifyMk64(dest);
+                if (problem != null) {
+                    showMk64Problem(problem);
+                    return;
                 }
-                out.flush();
-                Log.i(TAG, "Wrote " + total + " bytes → " + dest.getUri());
-            }
-            Log.i(TAG, "Copied to SAF: " + src.getAbsolutePath() + " → " + dest.getUri());
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "copyFileToTree " + src.getName(), e);
-            showToast("Failed copying " + src.getName());
-            return false;
-        }
-    }
 
-    // Returns true if any item was copied
-    private boolean copyFolderToTree(File srcDir, DocumentFile dstParent) {
-        boolean any = false;
-        DocumentFile dstDir = ensureDirectory(dstParent, srcDir.getName());
-        if (dstDir == null) return false;
-
-        File[] kids = srcDir.listFiles();
-        if (kids == null) return false;
-
-        for (File kid : kids) {
-            if (kid.isDirectory()) {
-                if (copyFolderToTree(kid, dstDir)) any = true;
-            } else {
-                if (copyFileToTree(kid, dstDir, guessMime(kid.getName()))) any = true;
+                // The archive is complete and synced; let the engine continue
+                signalSetupReady();
+                showToast("mk64.o2r ready. Loading the game...");
+            } catch (IOException e) {
+                Log.e(TAG, "handleRomFileSelection", e);
+                showToast("Failed to copy mk64.o2r: " + e.getMessage());
             }
-        }
-        return any;
+        }, "RomImport").start();
     }
 
-    private DocumentFile ensureDirectory(DocumentFile parent, String name) {
-        DocumentFile existing = findChild(parent, name);
-        if (existing != null && existing.isDirectory()) return existing;
-        if (existing != null) existing.delete();
-        return parent.createDirectory(name);
-    }
-
-    private DocumentFile findChild(DocumentFile parent, String name) {
-        for (DocumentFile f : parent.listFiles()) {
-            if (name.equals(f.getName())) return f;
-        }
-        return null;
-    }
-
-    private String guessMime(String name) {
-        String n = name.toLowerCase();
-        if (n.endsWith(".txt"))  return "text/plain";
-        if (n.endsWith(".json")) return "application/json";
-        return "application/octet-stream";
-    }
-
-    // ================= Controller overlay and touch handling (unchanged) =================
-    private Button buttonA, buttonB, buttonX, buttonY;
-    private Button buttonDpadUp, buttonDpadDown, buttonDpadLeft, buttonDpadRight;
-    private Button buttonLB, buttonRB, buttonZ, buttonStart, buttonBack, buttonToggle, buttonMenu;
-    private FrameLayout leftJoystick;
-    private ImageView leftJoystickKnob;
+    // ================= Controller overlay and touch handling =================
     private View overlayView;
+    private TouchControls touchControls;
+    private final ControllerState controllerState = new ControllerState();
 
     private void setupControllerOverlay() {
         LayoutInflater inflater = (LayoutInflater) getSystemService(LAYOUT_INFLATER_SERVICE);
@@ -672,253 +1074,99 @@ public class MainActivity extends SDLActivity {
         rootView.addView(overlayView);
 
         final ViewGroup buttonGroup = overlayView.findViewById(R.id.button_group);
+        boolean isHidden = preferences.getBoolean("controlsVisible", false);
+        buttonGroup.setVisibility(isHidden ? View.INVISIBLE : View.VISIBLE);
 
-        buttonA = overlayView.findViewById(R.id.buttonA);
-        buttonB = overlayView.findViewById(R.id.buttonB);
-        buttonX = overlayView.findViewById(R.id.buttonX);
-        buttonY = overlayView.findViewById(R.id.buttonY);
-
-        buttonDpadUp = overlayView.findViewById(R.id.buttonDpadUp);
-        buttonDpadDown = overlayView.findViewById(R.id.buttonDpadDown);
-        buttonDpadLeft = overlayView.findViewById(R.id.buttonDpadLeft);
-        buttonDpadRight = overlayView.findViewById(R.id.buttonDpadRight);
-
-        buttonLB = overlayView.findViewById(R.id.buttonLB);
-        buttonRB = overlayView.findViewById(R.id.buttonRB);
-        buttonZ = overlayView.findViewById(R.id.buttonZ);
-
-        buttonStart = overlayView.findViewById(R.id.buttonStart);
-        buttonBack = overlayView.findViewById(R.id.buttonBack);
-        buttonMenu = overlayView.findViewById(R.id.buttonMenu);
-
-        buttonToggle = overlayView.findViewById(R.id.buttonToggle);
-
-        leftJoystick = overlayView.findViewById(R.id.left_joystick);
-        leftJoystickKnob = overlayView.findViewById(R.id.left_joystick_knob);
-
-        FrameLayout rightScreenArea = overlayView.findViewById(R.id.right_screen_area);
-
-        addTouchListener(buttonA, ControllerButtons.BUTTON_A);
-        addTouchListener(buttonB, ControllerButtons.BUTTON_B);
-        addTouchListener(buttonX, ControllerButtons.BUTTON_X);
-        addTouchListener(buttonY, ControllerButtons.BUTTON_Y);
-
-        setupCButtons(buttonDpadUp, ControllerButtons.AXIS_RY, 1);
-        setupCButtons(buttonDpadDown, ControllerButtons.AXIS_RY, -1);
-        setupCButtons(buttonDpadLeft, ControllerButtons.AXIS_RX, 1);
-        setupCButtons(buttonDpadRight, ControllerButtons.AXIS_RX, -1);
-
-        addTouchListener(buttonLB, ControllerButtons.BUTTON_LB);
-        addTouchListener(buttonRB, ControllerButtons.BUTTON_RB);
-        addTouchListener(buttonZ, ControllerButtons.AXIS_RT);
-
-        addTouchListener(buttonStart, ControllerButtons.BUTTON_START);
-        addTouchListener(buttonBack, ControllerButtons.BUTTON_BACK);
-        setupMenuButton(buttonMenu);
-
-        setupJoystick(leftJoystick, leftJoystickKnob, true);
-        setupLookAround(rightScreenArea);
-        setupToggleButton(buttonToggle, buttonGroup);
-    }
-
-    private void setupMenuButton(Button button) {
-        button.setOnTouchListener(new View.OnTouchListener() {
+        TouchControls.Listener listener = new TouchControls.Listener() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        onNativeKeyDown(KeyEvent.KEYCODE_ESCAPE);
-                        button.setPressed(true);
-                        // Toggle menu state and controls
-                        MenuOpen = !MenuOpen;
-                        if (MenuOpen) {
-                            DisableAllControls();
-                        } else {
-                            EnableAllControls();
-                        }
-                        return true;
-                    case MotionEvent.ACTION_UP:
-                        onNativeKeyUp(KeyEvent.KEYCODE_ESCAPE);
-                        button.setPressed(false);
-                        return true;
-                    case MotionEvent.ACTION_CANCEL:
-                        onNativeKeyUp(KeyEvent.KEYCODE_ESCAPE);
-                        return true;
+            public void onMenu(boolean pressed) {
+                if (!pressed) {
+                    onNativeKeyUp(KeyEvent.KEYCODE_ESCAPE);
+                    return;
                 }
-                return false;
-            }
-        });
-    }
-
-    private void setupToggleButton(Button button, ViewGroup uiGroup) {
-        boolean isHidden = preferences.getBoolean("controlsVisible", false);
-        uiGroup.setVisibility(isHidden ? View.INVISIBLE : View.VISIBLE);
-        button.setOnClickListener(new View.OnClickListener() {
-            boolean isHidden = false;
-            @Override
-            public void onClick(View v) {
-                if (isHidden) {
-                    uiGroup.setVisibility(View.VISIBLE);
+                onNativeKeyDown(KeyEvent.KEYCODE_ESCAPE);
+                // Toggle menu state and controls
+                MenuOpen = !MenuOpen;
+                if (MenuOpen) {
+                    DisableAllControls();
                 } else {
-                    uiGroup.setVisibility(View.INVISIBLE);
+                    EnableAllControls();
                 }
-                preferences.edit().putBoolean("controlsVisible", !isHidden).apply();
-                isHidden = !isHidden;
             }
-        });
-    }
 
-    private void addTouchListener(Button button, int buttonNum) {
-        button.setOnTouchListener(new View.OnTouchListener() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                if (!AllControlsEnabled) return false;
-
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        setButton(buttonNum, true);
-                        button.setPressed(true);
-                        return true;
-                    case MotionEvent.ACTION_UP:
-                        setButton(buttonNum, false);
-                        button.setPressed(false);
-                        return true;
-                    case MotionEvent.ACTION_CANCEL:
-                        setButton(buttonNum, false);
-                        return true;
-                }
-                return false;
+            public void onToggle() {
+                boolean hide = buttonGroup.getVisibility() == View.VISIBLE;
+                buttonGroup.setVisibility(hide ? View.INVISIBLE : View.VISIBLE);
+                preferences.edit().putBoolean("controlsVisible", hide).apply();
             }
-        });
-    }
 
-    private void setupCButtons(Button button, int buttonNum, int direction) {
-        button.setOnTouchListener(new View.OnTouchListener() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                if (!AllControlsEnabled) return false;
-
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        setAxis(buttonNum, direction < 0 ? Short.MAX_VALUE : Short.MIN_VALUE);
-                        button.setPressed(true);
-                        return true;
-                    case MotionEvent.ACTION_UP:
-                        setAxis(buttonNum, (short) 0);
-                        button.setPressed(false);
-                        return true;
-                    case MotionEvent.ACTION_CANCEL:
-                        setAxis(buttonNum, (short) 0);
-                        return true;
-                }
-                return false;
+            public void onToggleLongPress() {
+                showModProfileDialog();
             }
-        });
+        };
+
+        // The engine reads the controller straight from this buffer, once per frame
+        nativeSetControllerBuffer(controllerState.buffer());
+        touchControls = new TouchControls(overlayView.findViewById(R.id.touch_surface), controllerState, listener);
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        touchControls.setLookDpi(metrics.xdpi, metrics.ydpi);
+
+        // Hit-tested in this order, so the small controls come before the joystick and look area
+        touchControls
+                .addToggle(overlayView.findViewById(R.id.buttonToggle))
+                .addMenu(overlayView.findViewById(R.id.buttonMenu))
+                .addButton(overlayView.findViewById(R.id.buttonA), ControllerButtons.BUTTON_A)
+                .addButton(overlayView.findViewById(R.id.buttonB), ControllerButtons.BUTTON_B)
+                .addButton(overlayView.findViewById(R.id.buttonX), ControllerButtons.BUTTON_X)
+                .addButton(overlayView.findViewById(R.id.buttonY), ControllerButtons.BUTTON_Y)
+                .addAxisButton(overlayView.findViewById(R.id.buttonDpadUp), ControllerButtons.AXIS_RY, Short.MIN_VALUE)
+                .addAxisButton(overlayView.findViewById(R.id.buttonDpadDown), ControllerButtons.AXIS_RY, Short.MAX_VALUE)
+                .addAxisButton(overlayView.findViewById(R.id.buttonDpadLeft), ControllerButtons.AXIS_RX, Short.MIN_VALUE)
+                .addAxisButton(overlayView.findViewById(R.id.buttonDpadRight), ControllerButtons.AXIS_RX, Short.MAX_VALUE)
+                .addButton(overlayView.findViewById(R.id.buttonLB), ControllerButtons.BUTTON_LB)
+                .addButton(overlayView.findViewById(R.id.buttonRB), ControllerButtons.BUTTON_RB)
+                .addButton(overlayView.findViewById(R.id.buttonZ), ControllerButtons.AXIS_RT)
+                .addButton(overlayView.findViewById(R.id.buttonStart), ControllerButtons.BUTTON_START)
+                .addButton(overlayView.findViewById(R.id.buttonBack), ControllerButtons.BUTTON_BACK)
+                .addStick(overlayView.findViewById(R.id.left_joystick), overlayView.findViewById(R.id.left_joystick_knob))
+                .addLookArea(overlayView.findViewById(R.id.right_screen_area));
+        overlayView.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+                touchControls.updateLayout());
     }
 
     // Control state management
-    private boolean TouchAreaEnabled = true;
     private boolean MenuOpen = false;
-    private boolean AllControlsEnabled = true;
 
+    // Called by the engine while ImGui wants the pointer
     private void DisableTouchArea() {
-        TouchAreaEnabled = false;
+        runOnUiThread(() -> touchControls.setLookEnabled(false));
     }
 
     private void EnableTouchArea() {
-        TouchAreaEnabled = true;
+        runOnUiThread(() -> touchControls.setLookEnabled(true));
     }
 
-    private void DisableAllControls() {
-        AllControlsEnabled = false;
-        TouchAreaEnabled = false;
-    }
-
-    private void EnableAllControls() {
-        AllControlsEnabled = true;
-        TouchAreaEnabled = true;
-    }
-
-    private void setupLookAround(FrameLayout rightScreenArea) {
-        rightScreenArea.setOnTouchListener(new View.OnTouchListener() {
-            private float lastX = 0;
-            private float lastY = 0;
-            private boolean isTouching = false;
-
-            @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        lastX = event.getX();
-                        lastY = event.getY();
-                        isTouching = true;
-                        break;
-                    case MotionEvent.ACTION_MOVE:
-                        if (isTouching) {
-                            float deltaX = event.getX() - lastX;
-                            float deltaY = event.getY() - lastY;
-                            lastX = event.getX();
-                            lastY = event.getY();
-                            float sensitivityMultiplier = 15;
-                            float rx = (deltaX * sensitivityMultiplier);
-                            float ry = (deltaY * sensitivityMultiplier);
-                            setCameraState(0, rx);
-                            setCameraState(1, ry);
-                        }
-                        break;
-                    case MotionEvent.ACTION_UP:
-                    case MotionEvent.ACTION_CANCEL:
-                        isTouching = false;
-                        setCameraState(0, 0.0f);
-                        setCameraState(1, 0.0f);
-                        break;
-                }
-                return TouchAreaEnabled && AllControlsEnabled;
+    // Called by the engine at startup and when "Low-latency touch" is toggled in the menu
+    private void SetUnbufferedTouch(boolean enabled) {
+        runOnUiThread(() -> {
+            touchControls.setUnbufferedDispatch(enabled);
+            // Touches the overlay passes on go to the SDL surface; only API 30 can unbatch a whole view
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && mSurface != null) {
+                mSurface.requestUnbufferedDispatch(enabled ? InputDevice.SOURCE_TOUCHSCREEN : 0);
             }
+            Log.i(TAG, "Unbuffered touch dispatch " + (enabled ? "on" : "off"));
         });
     }
 
-    private void setupJoystick(FrameLayout joystickLayout, ImageView joystickKnob, boolean isLeft) {
-        joystickLayout.post(() -> {
-            final float joystickCenterX = joystickLayout.getWidth() / 2f;
-            final float joystickCenterY = joystickLayout.getHeight() / 2f;
+    private void DisableAllControls() {
+        touchControls.setControlsEnabled(false);
+        touchControls.setLookEnabled(false);
+    }
 
-            joystickLayout.setOnTouchListener(new View.OnTouchListener() {
-                @Override
-                public boolean onTouch(View v, MotionEvent event) {
-                    if (!AllControlsEnabled) return false;
-
-                    switch (event.getAction()) {
-                        case MotionEvent.ACTION_DOWN:
-                        case MotionEvent.ACTION_MOVE:
-                            float deltaX = event.getX() - joystickCenterX;
-                            float deltaY = event.getY() - joystickCenterY;
-                            float maxRadius = joystickLayout.getWidth() / 2f - joystickKnob.getWidth() / 2f;
-                            float distance = (float) Math.sqrt(deltaX * deltaX + deltaY * deltaY);
-                            if (distance > maxRadius) {
-                                float scale = maxRadius / distance;
-                                deltaX *= scale;
-                                deltaY *= scale;
-                            }
-                            joystickKnob.setX(joystickCenterX + deltaX - joystickKnob.getWidth() / 2f);
-                            joystickKnob.setY(joystickCenterY + deltaY - joystickKnob.getHeight() / 2f);
-
-                            short x = (short) (deltaX / maxRadius * Short.MAX_VALUE);
-                            short y = (short) (deltaY / maxRadius * Short.MAX_VALUE);
-                            setAxis(isLeft ? ControllerButtons.AXIS_LX : ControllerButtons.AXIS_RX, x);
-                            setAxis(isLeft ? ControllerButtons.AXIS_LY : ControllerButtons.AXIS_RY, y);
-                            break;
-                        case MotionEvent.ACTION_UP:
-                        case MotionEvent.ACTION_CANCEL:
-                            joystickKnob.setX(joystickCenterX - joystickKnob.getWidth() / 2f);
-                            joystickKnob.setY(joystickCenterY - joystickKnob.getHeight() / 2f);
-                            setAxis(isLeft ? ControllerButtons.AXIS_LX : ControllerButtons.AXIS_RX, (short) 0);
-                            setAxis(isLeft ? ControllerButtons.AXIS_LY : ControllerButtons.AXIS_RY, (short) 0);
-                            break;
-                    }
-                    return true;
-                }
-            });
-        });
+    private void EnableAllControls() {
+        touchControls.setControlsEnabled(true);
+        touchControls.setLookEnabled(true);
     }
 }
@@ -0,0 +1,191 @@
+package com.izzy.kart;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of resources provided by more than one enabled mod, computed at sync time.
+ *
+ * Only the archives' central directories are read (ZipFile doesn't touch entry data until asked).
+ * Written to mod_conflicts.txt in the save dir: "v2", a key identifying the inputs, the enabled
+ * archives in load order as tab-separated "size:path" items, the archives every resource of which a
+ * later one overrides (tab-separated, possibly none), then one "resource\tarchive\tarchive..." line per
+ * conflict with the archives in load order, so the last one is what the engine ends up loading.
+ * Rebuilt only when the enabled set, its order or any of the archives' contents change.
+ *
+ * GameEngine reads the first lines: when the load order and sizes still match what it is about to
+ * mount, it skips the fully overridden archives, since nothing would ever be loaded from them.
+ */
+final class ModConflicts {
+    private static final String TAG = "ModConflicts";
+    static final String FILE_NAME = "mod_conflicts.txt";
+    private static final int FORMAT_VERSION = 2;
+
+    static final class Summary {
+        int overrides;  // resources this mod takes over from earlier mods
+        int overridden; // resources of this mod that later mods take over
+    }
+
+    private ModConflicts() {}
+
+    /**
+     * Brings the index in line with the enabled mods. {@code manifest} is the mod sync manifest, whose
+     * per-file blob hashes identify archive contents without reading them.
+     */
+    static void update(File modsDir, List<String> enabled, Map<String, ModSync.Entry> manifest, File indexFile) {
+        String key = ModSync.contentKey(enabled, manifest);
+        if (key.equals(readKey(indexFile))) return;
+
+        long start = System.nanoTime();
+        Map<String, List<String>> providers = new HashMap<>();
+        Map<String, Integer> fileCounts = new HashMap<>();
+        List<String> order = new ArrayList<>();
+        for (String archive : enabled) {
+            File file = new File(modsDir, archive);
+            if (!file.isFile()) continue;
+            order.add(file.length() + ":" + archive);
+            try (ZipFile zip = new ZipFile(file)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) continue;
+                    fileCounts.merge(archive, 1, Integer::sum);
+                    List<String> list = providers.get(entry.getName());
+                    if (list == null) {
+                        list = new ArrayList<>(1);
+                        providers.put(entry.getName(), list);
+                    }
+                    list.add(archive);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read " + archive, e);
+            }
+        }
+
+        Map<String, List<String>> conflicts = new LinkedHashMap<>();
+        Map<String, Integer> overridden = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : providers.entrySet()) {
+            List<String> archives = e.getValue();
+            if (archives.size() < 2) continue;
+            conflicts.put(e.getKey(), archives);
+            for (int i = 0; i < archives.size() - 1; i++) overridden.merge(archives.get(i), 1, Integer::sum);
+        }
+        List<String> shadowed = new ArrayList<>();
+        for (String archive : enabled) {
+            Integer count = fileCounts.get(archive);
+            if (count != null && count.equals(overridden.get(archive))) shadowed.add(archive);
+        }
+
+        try {
+            write(indexFile, key, order, shadowed, conflicts);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + FILE_NAME, e);
+        }
+        Log.i(TAG, conflicts.size() + " conflicting resource(s) across " + enabled.size() + " enabled mod(s), "
+                + shadowed.size() + " fully overridden, " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /** Per-archive conflict counts from the last index, for display. */
+    static Map<String, Summary> summarize(File indexFile) {
+        Map<String, Summary> summaries = new HashMap<>();
+        if (!indexFile.isFile()) return summaries;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return summaries;
+            reader.readLine(); // key
+            reader.readLine(); // load order
+            reader.readLine(); // fully overridden
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length < 3) continue;
+                for (int i = 1; i < parts.length; i++) {
+                    Summary s = summaries.get(parts[i]);
+                    if (s == null) {
+                        s = new Summary();
+                        summaries.put(parts[i], s);
+                    }
+                    if (i == parts.length - 1) s.overrides++;
+                    else s.overridden++;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + FILE_NAME, e);
+        }
+        return summaries;
+    }
+
+    /** Enabled archives from the last index that the engine doesn't mount, since later ones override them fully. */
+    static List<String> shadowed(File indexFile) {
+        List<String> archives = new ArrayList<>();
+        if (!indexFile.isFile()) return archives;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return archives;
+            reader.readLine(); // key
+            reader.readLine(); // load order
+            String line = reader.readLine();
+            if (line != null && !line.isEmpty()) archives.addAll(Arrays.asList(line.split("\t")));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + FILE_NAME, e);
+        }
+        return archives;
+    }
+
+    private static String readKey(File file) {
+        if (!file.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return null;
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void write(File file, String key, List<String> order, List<String> shadowed,
+                              Map<String, List<String>> conflicts) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            writer.write("v" + FORMAT_VERSION);
+            writer.newLine();
+            writer.write(key);
+            writer.newLine();
+            writer.write(String.join("\t", order));
+            writer.newLine();
+            writer.write(String.join("\t", shadowed));
+            writer.newLine();
+            for (Map.Entry<String, List<String>> e : conflicts.entrySet()) {
+                writer.write(e.getKey() + "\t" + String.join("\t", e.getValue()));
+                writer.newLine();
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.izzy.kart;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional consolidated pack of the enabled mods, built at sync time.
+ *
+ * With many small mods the engine spends its startup opening and indexing one archive after another.
+ * When mod compiling is on, the enabled archives are merged in load order into mod_pack.o2r in the
+ * save dir (later archives win, as when mounted separately) and GameEngine mounts that single file
+ * instead of the mods folder. Entries are copied still compressed, so a rebuild costs about one read
+ * and one write of the mods. mod_pack.key records the inputs the pack was built from; the pack is
+ * rebuilt only when the enabled set, its order or any archive's contents change.
+ */
+final class ModPack {
+    private static final String TAG = "ModPack";
+    static final String FILE_NAME = "mod_pack.o2r";
+    private static final String KEY_NAME = "mod_pack.key";
+
+    private ModPack() {}
+
+    /**
+     * Brings the pack in line with the enabled mods, or removes it when {@code compile} is off. Returns
+     * true if the pack on disk changed.
+     */
+    static boolean update(File saveDir, File modsDir, List<String> enabled, Map<String, ModSync.Entry> manifest,
+                          boolean compile) {
+        File pack = new File(saveDir, FILE_NAME);
+        File keyFile = new File(saveDir, KEY_NAME);
+
+        if (!compile || enabled.isEmpty()) {
+            keyFile.delete();
+            if (!pack.exists()) return false;
+            Log.i(TAG, "Removing mod pack");
+            return pack.delete();
+        }
+
+        String key = ModSync.contentKey(enabled, manifest);
+        if (pack.isFile() && key.equals(readKey(keyFile))) return false;
+
+        List<String> inputs = new ArrayList<>();
+        for (String archive : enabled) {
+            File file = new File(modsDir, archive);
+            if (file.isFile()) inputs.add(file.getAbsolutePath());
+        }
+
+        // Dropped first so a pack left half-replaced by a crash is never taken as current
+        keyFile.delete();
+        long start = System.nanoTime();
+        if (!MainActivity.nativeMergeArchives(inputs.toArray(new String[0]), pack.getAbsolutePath())) {
+            // Fall back to mounting the mods one by one rather than serving a stale pack
+            Log.e(TAG, "Merging " + inputs.size() + " mod(s) failed");
+            pack.delete();
+            return true;
+        }
+
+        try {
+            writeKey(keyFile, key);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + KEY_NAME + "; the pack will be rebuilt next sync", e);
+        }
+        Log.i(TAG, "Merged " + inputs.size() + " mod(s) into " + FILE_NAME + " (" + pack.length() + " bytes), "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return true;
+    }
+
+    private static String readKey(File file) {
+        if (!file.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeKey(File file, String key) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write((key + "\n").getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
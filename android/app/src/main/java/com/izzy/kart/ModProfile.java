@@ -0,0 +1,131 @@
+package com.izzy.kart;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which mod archives are enabled, and in what order they load.
+ *
+ * Stored as mod_profile.txt in the save dir, where GameEngine reads it to mount mods: "v1", then one
+ * line per archive, "+path" if enabled or "-path" if not, with the path relative to the mods folder.
+ * Later lines load later and win conflicts. Archives that appear in the mods folder are added enabled
+ * at the end; entries whose archive is gone are dropped.
+ */
+final class ModProfile {
+    private static final String TAG = "ModProfile";
+    static final String FILE_NAME = "mod_profile.txt";
+    private static final int FORMAT_VERSION = 1;
+
+    static final class Mod {
+        final String path;
+        boolean enabled;
+
+        Mod(String path, boolean enabled) {
+            this.path = path;
+            this.enabled = enabled;
+        }
+    }
+
+    private final List<Mod> mods = new ArrayList<>();
+
+    /** Same extensions GameEngine mounts from the mods folder. */
+    static boolean isArchive(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".o2r") || lower.endsWith(".zip");
+    }
+
+    static ModProfile load(File file) {
+        ModProfile profile = new ModProfile();
+        if (!file.isFile()) return profile;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return profile;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) continue;
+                char flag = line.charAt(0);
+                if (flag != '+' && flag != '-') continue;
+                profile.mods.add(new Mod(line.substring(1), flag == '+'));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable mod profile", e);
+            profile.mods.clear();
+        }
+        return profile;
+    }
+
+    void save(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            writer.write("v" + FORMAT_VERSION);
+            writer.newLine();
+            for (Mod mod : mods) {
+                writer.write((mod.enabled ? "+" : "-") + mod.path);
+                writer.newLine();
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /** Matches the profile to the archives present. Returns true if it changed. */
+    boolean reconcile(List<String> available) {
+        Set<String> present = new HashSet<>(available);
+        boolean changed = mods.removeIf(mod -> !present.contains(mod.path));
+
+        Set<String> known = new HashSet<>();
+        for (Mod mod : mods) known.add(mod.path);
+        List<String> added = new ArrayList<>();
+        for (String path : available) {
+            if (!known.contains(path)) added.add(path);
+        }
+        Collections.sort(added);
+        for (String path : added) {
+            mods.add(new Mod(path, true));
+            Log.i(TAG, "New mod enabled: " + path);
+        }
+        return changed || !added.isEmpty();
+    }
+
+    List<Mod> mods() {
+        return mods;
+    }
+
+    /** Enabled archives in load order. */
+    List<String> enabled() {
+        List<String> paths = new ArrayList<>();
+        for (Mod mod : mods) {
+            if (mod.enabled) paths.add(mod.path);
+        }
+        return paths;
+    }
+
+    /** Whether the mod sync should copy a file: everything except disabled archives. */
+    boolean includes(String relPath) {
+        if (!isArchive(relPath)) return true;
+        for (Mod mod : mods) {
+            if (mod.path.equals(relPath)) return mod.enabled;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,241 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Content-addressed blob store behind the internal mods folder.
+ *
+ * Every synced mod file is stored once under blobs/<sha256> and hard-linked to its path in the mods
+ * folder, so identical files (the same pack kept in several places) share storage. The filesystem is
+ * the only bookkeeping: a blob's link count says whether any mod path still uses it, the mtime of
+ * loaded/<sha256> is when the engine last mounted it, and the mtime of released/<sha256> is when a mod
+ * path last let go of it (the fallback for blobs never mounted). Blobs no path uses are kept as a cache
+ * and evicted least recently loaded first once the store exceeds its budget. Blobs themselves are never
+ * stamped, since the links share the mtime and the engine's archive index keys on it.
+ * Writes go to tmp/ and are fsynced and renamed into place, and tmp/ is cleared on open, so a killed
+ * process leaves nothing half-written behind.
+ */
+final class ModStore {
+    private static final String TAG = "ModStore";
+    private static final String BLOBS = "blobs";
+    private static final String TMP = "tmp";
+    private static final String LOADED = "loaded";
+    private static final String RELEASED = "released";
+
+    static final class TrimResult {
+        int evicted;
+        long bytesFreed;
+        long bytesInUse;
+        long bytesCached;
+
+        @Override
+        public String toString() {
+            return "evicted=" + evicted + " (" + bytesFreed + " bytes), in use=" + bytesInUse
+                    + " bytes, cached=" + bytesCached + " bytes";
+        }
+    }
+
+    private final File blobsDir;
+    private final File tmpDir;
+    private final File loadedDir;
+    private final File releasedDir;
+    private final long budgetBytes;
+
+    ModStore(File root, long budgetBytes) {
+        this.blobsDir = new File(root, BLOBS);
+        this.tmpDir = new File(root, TMP);
+        this.loadedDir = new File(root, LOADED);
+        this.releasedDir = new File(root, RELEASED);
+        this.budgetBytes = budgetBytes;
+        blobsDir.mkdirs();
+        loadedDir.mkdirs();
+        releasedDir.mkdirs();
+        clearTmp();
+    }
+
+    /** Copies a SAF document into the store and links it at dest. Returns the blob hash. */
+    String importUri(ContentResolver resolver, Uri src, File dest) throws IOException {
+        File tmp = new File(tmpDir, UUID.randomUUID().toString());
+        try {
+            FileImport.copyFromUri(resolver, src, tmp, true);
+            String hash = sha256(tmp);
+            File blob = blobFile(hash);
+            if (blob.exists()) {
+                Log.i(TAG, "Deduplicated " + dest.getName() + " -> " + hash);
+            } else {
+                blob.getParentFile().mkdirs();
+                if (!tmp.renameTo(blob)) throw new IOException("Could not store blob " + hash);
+            }
+            linkInto(blob, dest);
+            return hash;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /** Moves a plain file already at dest (synced before the store existed) into the store. */
+    String adopt(File dest) throws IOException {
+        String hash = sha256(dest);
+        File blob = blobFile(hash);
+        if (blob.exists()) {
+            linkInto(blob, dest);
+        } else {
+            blob.getParentFile().mkdirs();
+            try {
+                Os.link(dest.getAbsolutePath(), blob.getAbsolutePath());
+            } catch (ErrnoException e) {
+                FileImport.copyFile(dest, blob, true);
+            }
+        }
+        return hash;
+    }
+
+    boolean contains(String hash) {
+        return blobFile(hash).isFile();
+    }
+
+    /** Records that a mod path stopped using a blob, which starts its time in the cache. */
+    void release(String hash) {
+        // Other paths may still link the blob, so it gets a stamp of its own rather than a new mtime
+        stamp(releasedDir, hash, System.currentTimeMillis());
+    }
+
+    /** Records that the engine mounted these blobs, which is what eviction orders by. */
+    void markLoaded(Iterable<String> hashes) {
+        long now = System.currentTimeMillis();
+        for (String hash : hashes) {
+            if (contains(hash)) stamp(loadedDir, hash, now);
+        }
+    }
+
+    private static void stamp(File dir, String hash, long time) {
+        File stamp = new File(dir, hash);
+        try {
+            stamp.createNewFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not stamp " + hash, e);
+            return;
+        }
+        stamp.setLastModified(time);
+    }
+
+    /** Evicts unreferenced blobs, least recently loaded first, until the store fits its budget. */
+    TrimResult trim() {
+        TrimResult result = new TrimResult();
+        List<File> unreferenced = new ArrayList<>();
+
+        File[] shards = blobsDir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] blobs = shard.listFiles();
+                if (blobs == null) continue;
+                for (File blob : blobs) {
+                    if (isReferenced(blob)) {
+                        result.bytesInUse += blob.length();
+                    } else {
+                        result.bytesCached += blob.length();
+                        unreferenced.add(blob);
+                    }
+                }
+            }
+        }
+
+        // Mods in use are never evicted, even when they alone exceed the budget
+        unreferenced.sort((a, b) -> Long.compare(lastLoaded(a), lastLoaded(b)));
+        for (File blob : unreferenced) {
+            if (result.bytesInUse + result.bytesCached <= budgetBytes) break;
+            long size = blob.length();
+            if (blob.delete()) {
+                new File(loadedDir, blob.getName()).delete();
+                new File(releasedDir, blob.getName()).delete();
+                result.evicted++;
+                result.bytesFreed += size;
+                result.bytesCached -= size;
+            }
+        }
+
+        if (result.bytesInUse > budgetBytes) {
+            Log.w(TAG, "Mods in use (" + result.bytesInUse + " bytes) exceed the store budget of " + budgetBytes);
+        }
+        Log.i(TAG, "Trimmed store: " + result);
+        return result;
+    }
+
+    // 0 for a missing stamp; blobs stored before the stamps existed fall back to their own mtime
+    private long lastLoaded(File blob) {
+        long loaded = new File(loadedDir, blob.getName()).lastModified();
+        if (loaded != 0) return loaded;
+        long released = new File(releasedDir, blob.getName()).lastModified();
+        return released != 0 ? released : blob.lastModified();
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(blobsDir, hash.substring(0, 2)), hash);
+    }
+
+    // Atomically replaces dest with a hard link to blob (a copy if the filesystem refuses links).
+    // dest is never written through, since it may itself be a link to another blob.
+    private static void linkInto(File blob, File dest) throws IOException {
+        File parent = dest.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        File tmpLink = new File(parent, "." + dest.getName() + ".link");
+        tmpLink.delete();
+        try {
+            Os.link(blob.getAbsolutePath(), tmpLink.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Hard link failed (" + e.getMessage() + "), copying " + dest.getName());
+            FileImport.copyFile(blob, tmpLink, true);
+        }
+        if (!tmpLink.renameTo(dest)) {
+            tmpLink.delete();
+            throw new IOException("Could not link " + dest);
+        }
+    }
+
+    private static boolean isReferenced(File blob) {
+        try {
+            return Os.stat(blob.getAbsolutePath()).st_nlink > 1;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private void clearTmp() {
+        File[] leftovers = tmpDir.listFiles();
+        if (leftovers != null) {
+            for (File f : leftovers) f.delete();
+        }
+        tmpDir.mkdirs();
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int r;
+            while ((r = in.read(buf)) != -1) digest.update(buf, 0, r);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
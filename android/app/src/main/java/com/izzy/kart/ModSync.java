@@ -0,0 +1,279 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Mirrors the user's SAF mods folder into internal storage incrementally.
+ *
+ * A manifest (relative path -> size, last-modified, CRC32) is kept next to the synced files.
+ * Only new or changed documents are copied, documents that disappeared from the user folder
+ * are deleted, and everything else is left untouched. File contents live in a {@link ModStore};
+ * the mods folder only holds links into it, so it is never written through.
+ */
+final class ModSync {
+    private static final String TAG = "ModSync";
+    static final String MANIFEST_NAME = ".sync_manifest";
+    private static final int MANIFEST_VERSION = 2;
+
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final long crc; // -1 when unknown
+        final String blob; // ModStore hash, null for files synced before the store existed
+
+        Entry(long size, long lastModified, long crc, String blob) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc;
+            this.blob = blob;
+        }
+    }
+
+    static final class Result {
+        int copied;
+        int deleted;
+        int unchanged;
+        long bytesCopied;
+        long bytesSkipped;
+        final List<String> changed = new ArrayList<>(); // relative paths copied or deleted
+
+        @Override
+        public String toString() {
+            return "copied=" + copied + " (" + bytesCopied + " bytes), deleted=" + deleted
+                    + ", unchanged=" + unchanged + " (" + bytesSkipped + " bytes skipped)";
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final File destRoot;
+    private final ModStore store;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new HashMap<>();
+    private final Result result = new Result();
+
+    ModSync(ContentResolver resolver, File destRoot, ModStore store) {
+        this.resolver = resolver;
+        this.destRoot = destRoot;
+        this.store = store;
+        this.previous = readManifest(new File(destRoot, MANIFEST_NAME));
+    }
+
+    /** Syncs the files {@code include} accepts (by relative path); everything else is removed locally. */
+    Result sync(SafIndex index, SafIndex.Node sourceRoot, Predicate<String> include) throws IOException {
+        if (!destRoot.exists()) destRoot.mkdirs();
+
+        syncDirectory(index, sourceRoot, destRoot, "", include);
+        pruneRemoved(destRoot, "");
+        writeManifest(new File(destRoot, MANIFEST_NAME), current);
+        store.trim();
+
+        Log.i(TAG, "Mod sync finished: " + result);
+        return result;
+    }
+
+    /** Relative paths of the mod archives below sourceRoot. */
+    static List<String> listArchives(SafIndex index, SafIndex.Node sourceRoot) {
+        List<String> archives = new ArrayList<>();
+        collectArchives(index, sourceRoot, "", archives);
+        return archives;
+    }
+
+    private static void collectArchives(SafIndex index, SafIndex.Node dir, String relDir, List<String> out) {
+        for (SafIndex.Node node : index.list(dir)) {
+            String relPath = relDir.isEmpty() ? node.name : relDir + "/" + node.name;
+            if (node.isDirectory()) collectArchives(index, node, relPath, out);
+            else if (ModProfile.isArchive(relPath)) out.add(relPath);
+        }
+    }
+
+    private void syncDirectory(SafIndex index, SafIndex.Node sourceDir, File destDir, String relDir,
+                               Predicate<String> include) {
+        for (SafIndex.Node file : index.list(sourceDir)) {
+            String name = file.name;
+            String relPath = relDir.isEmpty() ? name : relDir + "/" + name;
+            File destFile = new File(destDir, name);
+
+            if (file.isDirectory()) {
+                if (destFile.isFile()) destFile.delete();
+                destFile.mkdirs();
+                syncDirectory(index, file, destFile, relPath, include);
+            } else if (include.test(relPath)) {
+                syncFile(file, destFile, relPath);
+            }
+        }
+    }
+
+    private void syncFile(SafIndex.Node src, File dest, String relPath) {
+        long size = src.size;
+        long lastModified = src.lastModified;
+        Entry known = previous.get(relPath);
+
+        if (known != null && dest.isFile() && dest.length() == size) {
+            if (known.lastModified == lastModified) {
+                current.put(relPath, inStore(known, dest, relPath));
+                result.unchanged++;
+                result.bytesSkipped += size;
+                return;
+            }
+            // Timestamp moved but size didn't (re-saved or touched): compare content hashes before rewriting.
+            try {
+                long crc = crcOf(src);
+                long localCrc = known.crc != -1 ? known.crc : FileImport.crc32(dest);
+                if (crc == localCrc) {
+                    current.put(relPath, inStore(new Entry(size, lastModified, crc, known.blob), dest, relPath));
+                    result.unchanged++;
+                    result.bytesSkipped += size;
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not hash " + relPath + ", copying instead", e);
+            }
+        }
+
+        try {
+            String blob = store.importUri(resolver, src.uri, dest);
+            if (known != null && known.blob != null && !known.blob.equals(blob)) store.release(known.blob);
+            // The CRC is only used for the touched-but-unchanged check above; it is filled in lazily when needed
+            current.put(relPath, new Entry(size, lastModified, -1, blob));
+            result.copied++;
+            result.bytesCopied += dest.length();
+            result.changed.add(relPath);
+            Log.i(TAG, "Copied mod file: " + relPath);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to copy mod file: " + relPath, e);
+            dest.delete();
+        }
+    }
+
+    // Moves an unchanged file synced before the store existed into it.
+    private Entry inStore(Entry entry, File dest, String relPath) {
+        if (entry.blob != null && store.contains(entry.blob)) return entry;
+        try {
+            return new Entry(entry.size, entry.lastModified, entry.crc, store.adopt(dest));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not move " + relPath + " into the mod store", e);
+            return entry;
+        }
+    }
+
+    private long crcOf(SafIndex.Node src) throws IOException {
+        try (InputStream raw = resolver.openInputStream(src.uri)) {
+            if (raw == null) throw new IOException("Null InputStream from resolver");
+            try (CheckedInputStream in = new CheckedInputStream(raw, new CRC32())) {
+                byte[] buf = new byte[64 * 1024];
+                while (in.read(buf) != -1) { /* drain */ }
+                return in.getChecksum().getValue();
+            }
+        }
+    }
+
+    // Removes internal files and folders that are no longer present in the user folder.
+    private void pruneRemoved(File dir, String relDir) {
+        File[] kids = dir.listFiles();
+        if (kids == null) return;
+
+        for (File kid : kids) {
+            String relPath = relDir.isEmpty() ? kid.getName() : relDir + "/" + kid.getName();
+            if (relDir.isEmpty() && kid.getName().equals(MANIFEST_NAME)) continue;
+
+            if (kid.isDirectory()) {
+                pruneRemoved(kid, relPath);
+                String[] left = kid.list();
+                if (left != null && left.length == 0) kid.delete();
+            } else if (!current.containsKey(relPath)) {
+                if (kid.delete()) {
+                    Entry gone = previous.get(relPath);
+                    if (gone != null && gone.blob != null) store.release(gone.blob);
+                    result.deleted++;
+                    result.changed.add(relPath);
+                    Log.i(TAG, "Removed mod file: " + relPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies the contents of the given synced files, in order, without reading them: blob hashes where
+     * known, size and timestamp otherwise. Used to tell whether anything built from them is stale.
+     */
+    static String contentKey(List<String> relPaths, Map<String, Entry> manifest) {
+        CRC32 crc = new CRC32();
+        for (String relPath : relPaths) {
+            Entry entry = manifest.get(relPath);
+            String id = relPath + "=" + (entry == null ? "?" : entry.blob != null ? entry.blob
+                    : entry.size + ":" + entry.lastModified);
+            crc.update((id + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return relPaths.size() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    // ===== Manifest I/O =====
+    // Format: header line "v<version>", then one "size\tlastModified\tcrc\tblob\tpath" line per file
+    // ("-" for no blob). v1 manifests, which had no blob column, are still read.
+    static Map<String, Entry> readManifest(File file) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!file.isFile()) return entries;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            int columns;
+            if (("v" + MANIFEST_VERSION).equals(header)) columns = 5;
+            else if ("v1".equals(header)) columns = 4;
+            else return entries;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", columns);
+                if (parts.length != columns) continue;
+                String blob = columns == 5 && !"-".equals(parts[3]) ? parts[3] : null;
+                entries.put(parts[columns - 1], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), blob));
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Discarding unreadable sync manifest", e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    static void writeManifest(File file, Map<String, Entry> entries) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            writer.write("v" + MANIFEST_VERSION);
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry v = e.getValue();
+                writer.write(v.size + "\t" + v.lastModified + "\t" + v.crc + "\t"
+                        + (v.blob != null ? v.blob : "-") + "\t" + e.getKey());
+                writer.newLine();
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
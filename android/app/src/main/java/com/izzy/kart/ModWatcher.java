@@ -0,0 +1,131 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches the user's mods folder and reports changes once they settle.
+ *
+ * Changes made through the document provider arrive via a ContentObserver on the provider. Apps that
+ * write the files directly (file managers, adb push) bypass the provider, so when the folder maps to
+ * a readable path on shared storage each of its directories also gets a FileObserver. Bursts of
+ * events (a pack being copied file by file) are collapsed into one callback on the main thread.
+ */
+final class ModWatcher {
+    private static final String TAG = "ModWatcher";
+    private static final long DEBOUNCE_MS = 750;
+    private static final int FILE_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.CREATE | FileObserver.DELETE | FileObserver.DELETE_SELF;
+
+    interface Listener {
+        void onModsChanged();
+    }
+
+    private final ContentResolver resolver;
+    private final String authority;
+    private final String modsDocumentId;
+    private final File modsPath; // null when the folder has no direct path
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable fire = this::fire;
+    private final List<FileObserver> fileObservers = new ArrayList<>();
+    private ContentObserver contentObserver;
+
+    ModWatcher(ContentResolver resolver, Uri treeUri, String modsDocumentId, File modsPath, Listener listener) {
+        this.resolver = resolver;
+        this.authority = treeUri.getAuthority();
+        this.modsDocumentId = modsDocumentId;
+        this.modsPath = modsPath != null && modsPath.canRead() ? modsPath : null;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (contentObserver != null) return;
+
+        contentObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (concernsMods(uri)) schedule();
+            }
+        };
+        // Providers notify per document or per directory listing; watch the whole authority and filter
+        Uri providerRoot = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority).build();
+        resolver.registerContentObserver(providerRoot, true, contentObserver);
+
+        rescanDirectories();
+        Log.i(TAG, "Watching mods (" + modsDocumentId + (modsPath != null ? ", " + modsPath : "") + ")");
+    }
+
+    void stop() {
+        handler.removeCallbacks(fire);
+        if (contentObserver != null) {
+            resolver.unregisterContentObserver(contentObserver);
+            contentObserver = null;
+        }
+        synchronized (fileObservers) {
+            for (FileObserver o : fileObservers) o.stopWatching();
+            fileObservers.clear();
+        }
+    }
+
+    /** Re-creates the per-directory file observers, picking up directories added since the last scan. */
+    void rescanDirectories() {
+        if (modsPath == null) return;
+        synchronized (fileObservers) {
+            for (FileObserver o : fileObservers) o.stopWatching();
+            fileObservers.clear();
+            watchTree(modsPath);
+        }
+    }
+
+    @SuppressWarnings("deprecation") // FileObserver(File, int) needs API 29
+    private void watchTree(File dir) {
+        FileObserver observer = new FileObserver(dir.getAbsolutePath(), FILE_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                schedule();
+            }
+        };
+        observer.startWatching();
+        fileObservers.add(observer);
+
+        File[] kids = dir.listFiles();
+        if (kids == null) return;
+        for (File kid : kids) {
+            if (kid.isDirectory()) watchTree(kid);
+        }
+    }
+
+    private boolean concernsMods(Uri uri) {
+        if (uri == null) return true;
+        String documentId;
+        try {
+            documentId = DocumentsContract.getDocumentId(uri);
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+        // Path-like ids (e.g. "primary:Kart/mods/pack.o2r") can be filtered; opaque ones can't
+        if (documentId == null || !modsDocumentId.contains("/")) return true;
+        return documentId.equals(modsDocumentId) || documentId.startsWith(modsDocumentId + "/");
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(fire);
+        handler.postDelayed(fire, DEBOUNCE_MS);
+    }
+
+    private void fire() {
+        if (contentObserver == null) return; // stopped
+        listener.onModsChanged();
+    }
+}
@@ -0,0 +1,271 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, resumable import of large files (mk64.o2r) from SAF documents.
+ *
+ * Data goes to <dest>.part in fixed-size chunks. After each chunk the part file is fsynced and the
+ * chunk's CRC32 is appended to <dest>.journal, so a copy cut short by a crash resumes after the last
+ * recorded chunk: seekable sources jump straight there, pipes are read back up to it and checked
+ * against the recorded CRCs. The journal also names the source (uri, size, timestamp), and a changed
+ * source starts over. The finished file is renamed into place, so dest only ever exists complete.
+ *
+ * The fingerprint (size plus a CRC32 over the chunk CRCs) is kept in <dest>.fingerprint along with the
+ * file's size and timestamp, so later launches can trust the file without hashing it again.
+ */
+final class ResumableImport {
+    private static final String TAG = "ResumableImport";
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int FORMAT_VERSION = 1;
+
+    static final class Result {
+        long bytes;
+        long resumedFrom;
+        String fingerprint;
+
+        @Override
+        public String toString() {
+            return bytes + " bytes (resumed from " + resumedFrom + "), fingerprint " + fingerprint;
+        }
+    }
+
+    private ResumableImport() {}
+
+    /** Copies a SAF document to dest, resuming an earlier interrupted copy of the same document. */
+    static Result importFrom(ContentResolver resolver, Uri src, File dest) throws IOException {
+        File part = sibling(dest, ".part");
+        File journal = sibling(dest, ".journal");
+        String source = describe(resolver, src);
+
+        List<Long> recorded = source != null ? readJournal(journal, source) : new ArrayList<>();
+        if (recorded.isEmpty()) {
+            part.delete();
+            writeJournal(journal, source, recorded);
+        }
+
+        Result result = new Result();
+        List<Long> crcs = new ArrayList<>();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(src, "r")) {
+            if (pfd == null) throw new FileNotFoundException("No descriptor from resolver for " + src);
+            try (FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+                 RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+                // Only whole chunks that made it to disk count; a short final chunk is simply copied again
+                int resumable = (int) Math.min(recorded.size(), out.length() / CHUNK_SIZE);
+                if (resumable < recorded.size()) {
+                    recorded = new ArrayList<>(recorded.subList(0, resumable));
+                    writeJournal(journal, source, recorded);
+                }
+
+                int index = 0;
+                long total = 0;
+                if (pfd.getStatSize() >= 0 && resumable > 0) {
+                    total = (long) resumable * CHUNK_SIZE;
+                    in.getChannel().position(total);
+                    crcs.addAll(recorded);
+                    index = resumable;
+                }
+                result.resumedFrom = (long) resumable * CHUNK_SIZE;
+
+                int n;
+                while ((n = readChunk(in, chunk)) > 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(chunk, 0, n);
+                    long value = crc.getValue();
+
+                    if (index < recorded.size()) {
+                        // Reading a pipe back to where the last attempt stopped
+                        if (recorded.get(index) == value) {
+                            crcs.add(value);
+                            index++;
+                            total += n;
+                            continue;
+                        }
+                        Log.w(TAG, "Source changed at chunk " + index + " since the interrupted copy, rewriting from there");
+                        recorded = new ArrayList<>(recorded.subList(0, index));
+                        writeJournal(journal, source, recorded);
+                        result.resumedFrom = (long) index * CHUNK_SIZE;
+                    }
+
+                    out.seek((long) index * CHUNK_SIZE);
+                    out.write(chunk, 0, n);
+                    out.getFD().sync();
+                    appendJournal(journal, value);
+                    crcs.add(value);
+                    index++;
+                    total += n;
+                }
+
+                out.setLength(total);
+                out.getFD().sync();
+                result.bytes = total;
+            }
+        }
+
+        if (!part.renameTo(dest)) throw new IOException("Could not move " + part + " into place");
+        result.fingerprint = fingerprint(crcs, result.bytes);
+        writeFingerprint(dest, result.fingerprint);
+        journal.delete();
+        Log.i(TAG, "Imported " + dest.getName() + ": " + result);
+        return result;
+    }
+
+    /** Whether dest has a fingerprint that still matches its size and timestamp. */
+    static boolean isVerified(File dest) {
+        return readFingerprint(dest) != null;
+    }
+
+    /** The recorded fingerprint of dest, or null if it has none or the file changed since. */
+    static String readFingerprint(File dest) {
+        File file = sibling(dest, ".fingerprint");
+        if (!file.isFile() || !dest.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine())) return null;
+            String line = reader.readLine();
+            if (line == null) return null;
+            String[] parts = line.split("\t");
+            if (parts.length != 3) return null;
+            boolean current = Long.parseLong(parts[0]) == dest.length()
+                    && Long.parseLong(parts[1]) == dest.lastModified();
+            return current ? parts[2] : null;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Drops the fingerprint and any interrupted copy once dest itself has been removed. */
+    static void forget(File dest) {
+        sibling(dest, ".fingerprint").delete();
+        sibling(dest, ".part").delete();
+        sibling(dest, ".journal").delete();
+    }
+
+    /** Fingerprints a file that was written some other way (e.g. by an older version). */
+    static String adopt(File dest) throws IOException {
+        List<Long> crcs = new ArrayList<>();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long total = 0;
+        try (FileInputStream in = new FileInputStream(dest)) {
+            int n;
+            while ((n = readChunk(in, chunk)) > 0) {
+                CRC32 crc = new CRC32();
+                crc.update(chunk, 0, n);
+                crcs.add(crc.getValue());
+                total += n;
+            }
+        }
+        String fingerprint = fingerprint(crcs, total);
+        writeFingerprint(dest, fingerprint);
+        return fingerprint;
+    }
+
+    // ===== Helpers =====
+    private static File sibling(File dest, String suffix) {
+        return new File(dest.getParentFile(), dest.getName() + suffix);
+    }
+
+    // Fills the buffer unless the stream ends first, so every chunk but the last is full-sized.
+    private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int filled = 0;
+        while (filled < chunk.length) {
+            int r = in.read(chunk, filled, chunk.length - filled);
+            if (r == -1) break;
+            filled += r;
+        }
+        return filled;
+    }
+
+    private static String fingerprint(List<Long> crcs, long size) {
+        CRC32 crc = new CRC32();
+        for (long value : crcs) {
+            crc.update((int) (value >>> 24));
+            crc.update((int) (value >>> 16));
+            crc.update((int) (value >>> 8));
+            crc.update((int) value);
+        }
+        return size + ":" + Long.toHexString(crc.getValue());
+    }
+
+    // "uri\tsize\tlastModified", or null when the provider can't tell a changed document apart.
+    private static String describe(ContentResolver resolver, Uri src) {
+        String[] projection = {
+            DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED
+        };
+        try (Cursor c = resolver.query(src, projection, null, null, null)) {
+            if (c == null || !c.moveToFirst() || c.isNull(0) || c.isNull(1)) return null;
+            return src + "\t" + c.getLong(0) + "\t" + c.getLong(1);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // ===== Journal / fingerprint files =====
+    // Journal: "v1", the source line, then one 8-digit hex CRC per completed chunk.
+    private static List<Long> readJournal(File journal, String source) {
+        List<Long> crcs = new ArrayList<>();
+        if (!journal.isFile()) return crcs;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            if (!("v" + FORMAT_VERSION).equals(reader.readLine()) || !source.equals(reader.readLine())) return crcs;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() == 8) {
+                crcs.add(Long.parseLong(line, 16));
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Discarding unreadable journal " + journal, e);
+            crcs.clear();
+        }
+        return crcs;
+    }
+
+    private static void writeJournal(File journal, String source, List<Long> crcs) throws IOException {
+        StringBuilder sb = new StringBuilder("v" + FORMAT_VERSION + "\n" + (source != null ? source : "") + "\n");
+        for (long value : crcs) sb.append(String.format("%08x\n", value));
+        writeAtomically(journal, sb.toString());
+    }
+
+    private static void appendJournal(File journal, long crc) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write(String.format("%08x\n", crc).getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+    }
+
+    private static void writeFingerprint(File dest, String fingerprint) throws IOException {
+        writeAtomically(sibling(dest, ".fingerprint"), "v" + FORMAT_VERSION + "\n"
+                + dest.length() + "\t" + dest.lastModified() + "\t" + fingerprint + "\n");
+    }
+
+    private static void writeAtomically(File file, String contents) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(contents.getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
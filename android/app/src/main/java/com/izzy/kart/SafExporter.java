@@ -0,0 +1,179 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies local files into a SAF tree on a bounded worker pool.
+ *
+ * Directories are created on the calling thread while walking the source, so file jobs can start
+ * (create document, then stream) as soon as their parent exists. Jobs for the same storage volume
+ * share a small number of permits so slow providers (SD cards, cloud-backed trees) aren't flooded
+ * with concurrent opens. Failures are collected into one {@link Result} instead of per-file toasts.
+ */
+final class SafExporter {
+    private static final String TAG = "SafExporter";
+    private static final int WORKERS = 4;
+    private static final int PERMITS_PRIMARY = 4; // internal shared storage
+    private static final int PERMITS_OTHER = 2;   // removable volumes and third-party providers
+
+    // Provider authority + volume -> concurrent copies allowed, shared by every exporter in the process
+    private static final Map<String, Semaphore> PROVIDER_PERMITS = new HashMap<>();
+
+    static final class Result {
+        int files;
+        long bytes;
+        final List<String> failed = new ArrayList<>();
+
+        boolean anyCopied() {
+            return files > 0;
+        }
+    }
+
+    private interface Copy {
+        long into(Uri dest) throws IOException;
+    }
+
+    private final ContentResolver resolver;
+    private final SafIndex index;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final Result result = new Result();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    SafExporter(ContentResolver resolver, SafIndex index, Uri treeUri) {
+        this.resolver = resolver;
+        this.index = index;
+        this.permits = permitsFor(treeUri);
+        this.executor = Executors.newFixedThreadPool(WORKERS,
+                r -> new Thread(r, "SafExporter-" + threadCount.incrementAndGet()));
+    }
+
+    void addFile(File src, SafIndex.Node parent, String mime) {
+        submit(src.getName(), parent, mime, dest -> FileImport.copyToUri(resolver, src, dest));
+    }
+
+    void addAsset(AssetManager assets, String assetName, SafIndex.Node parent, String mime) {
+        submit(assetName, parent, mime, dest -> {
+            try (InputStream in = assets.open(assetName)) {
+                return FileImport.copyStreamToUri(resolver, in, dest);
+            }
+        });
+    }
+
+    /** Mirrors srcDir into parent/srcDir.getName(), skipping files named skipName. Returns false if the folder couldn't be created. */
+    boolean addFolder(File srcDir, SafIndex.Node parent, String skipName) {
+        SafIndex.Node dstDir = index.ensureDirectory(parent, srcDir.getName());
+        if (dstDir == null) {
+            fail(srcDir.getName() + "/");
+            return false;
+        }
+
+        File[] kids = srcDir.listFiles();
+        if (kids == null) return true;
+
+        for (File kid : kids) {
+            if (kid.isDirectory()) {
+                addFolder(kid, dstDir, skipName);
+            } else if (!kid.getName().equals(skipName)) {
+                addFile(kid, dstDir, guessMime(kid.getName()));
+            }
+        }
+        return true;
+    }
+
+    /** Waits for every queued copy and returns the aggregated outcome. */
+    Result finish() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) { /* keep waiting */ }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        synchronized (result) {
+            Log.i(TAG, "Export finished: " + result.files + " file(s), " + result.bytes + " bytes, "
+                    + result.failed.size() + " failed");
+            return result;
+        }
+    }
+
+    static String guessMime(String name) {
+        String n = name.toLowerCase();
+        if (n.endsWith(".txt"))  return "text/plain";
+        if (n.endsWith(".json")) return "application/json";
+        return "application/octet-stream";
+    }
+
+    private void submit(String name, SafIndex.Node parent, String mime, Copy copy) {
+        executor.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(name);
+                return;
+            }
+            try {
+                // Overwrite if present
+                SafIndex.Node existing = index.find(parent, name);
+                if (existing != null && !existing.isDirectory()) index.delete(parent, existing);
+
+                SafIndex.Node dest = index.createFile(parent, mime, name);
+                if (dest == null) throw new IOException("Failed to create file in tree: " + name);
+
+                long bytes = copy.into(dest.uri);
+                synchronized (result) {
+                    result.files++;
+                    result.bytes += bytes;
+                }
+                Log.i(TAG, "Copied to SAF: " + name + " (" + bytes + " bytes) → " + dest.uri);
+            } catch (IOException e) {
+                Log.e(TAG, "Export of " + name + " failed", e);
+                fail(name);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void fail(String name) {
+        synchronized (result) {
+            result.failed.add(name);
+        }
+    }
+
+    private static Semaphore permitsFor(Uri treeUri) {
+        String treeId = DocumentsContract.getTreeDocumentId(treeUri);
+        int colon = treeId.indexOf(':');
+        String volume = colon >= 0 ? treeId.substring(0, colon) : treeId;
+        String key = treeUri.getAuthority() + "/" + volume;
+
+        boolean primary = "com.android.externalstorage.documents".equals(treeUri.getAuthority())
+                && "primary".equals(volume);
+        synchronized (PROVIDER_PERMITS) {
+            Semaphore s = PROVIDER_PERMITS.get(key);
+            if (s == null) {
+                s = new Semaphore(primary ? PERMITS_PRIMARY : PERMITS_OTHER);
+                PROVIDER_PERMITS.put(key, s);
+            }
+            return s;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.izzy.kart;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of a SAF document tree.
+ *
+ * Each directory is listed with a single ContentResolver query that projects id, name, mime type,
+ * size and last-modified, and the result is cached. DocumentFile, by contrast, issues one binder
+ * call per listFiles() and another for every getName()/isDirectory()/length() afterwards.
+ * Creations and deletions made through the index keep the cache current. Safe to share between threads.
+ */
+final class SafIndex {
+    private static final String TAG = "SafIndex";
+
+    private static final String[] PROJECTION = {
+        Document.COLUMN_DOCUMENT_ID,
+        Document.COLUMN_DISPLAY_NAME,
+        Document.COLUMN_MIME_TYPE,
+        Document.COLUMN_SIZE,
+        Document.COLUMN_LAST_MODIFIED,
+    };
+
+    static final class Node {
+        final String documentId;
+        final String name;
+        final String mimeType;
+        final long size;
+        final long lastModified;
+        final Uri uri;
+
+        Node(Uri treeUri, String documentId, String name, String mimeType, long size, long lastModified) {
+            this.documentId = documentId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+        }
+
+        boolean isDirectory() {
+            return Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Uri treeUri;
+    private final Node root;
+    // documentId of a directory -> its children by display name
+    private final Map<String, Map<String, Node>> children = new HashMap<>();
+
+    SafIndex(ContentResolver resolver, Uri treeUri) {
+        this.resolver = resolver;
+        this.treeUri = treeUri;
+        String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        this.root = new Node(treeUri, rootId, "", Document.MIME_TYPE_DIR, 0, 0);
+    }
+
+    Node root() {
+        return root;
+    }
+
+    /** Children of a directory, queried once and then served from the cache. */
+    List<Node> list(Node dir) {
+        return new ArrayList<>(childrenOf(dir).values());
+    }
+
+    /** Child with the given display name, or null. */
+    Node find(Node dir, String name) {
+        return childrenOf(dir).get(name);
+    }
+
+    /** Looks up a '/'-separated path below the root, or returns null. */
+    Node resolve(String path) {
+        Node node = root;
+        for (String part : path.split("/")) {
+            if (part.isEmpty()) continue;
+            if (node == null || !node.isDirectory()) return null;
+            node = find(node, part);
+        }
+        return node;
+    }
+
+    Node createFile(Node dir, String mimeType, String name) {
+        return create(dir, mimeType, name);
+    }
+
+    Node createDirectory(Node dir, String name) {
+        return create(dir, Document.MIME_TYPE_DIR, name);
+    }
+
+    /** Returns the existing child directory, replacing a file of the same name, or creates it. */
+    Node ensureDirectory(Node dir, String name) {
+        Node existing = find(dir, name);
+        if (existing != null && existing.isDirectory()) return existing;
+        if (existing != null) delete(dir, existing);
+        return createDirectory(dir, name);
+    }
+
+    boolean delete(Node dir, Node node) {
+        try {
+            if (!DocumentsContract.deleteDocument(resolver, node.uri)) return false;
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "deleteDocument failed for " + node.name + ": " + e);
+            return false;
+        }
+        synchronized (children) {
+            Map<String, Node> kids = children.get(dir.documentId);
+            if (kids != null) kids.remove(node.name);
+            children.remove(node.documentId);
+        }
+        return true;
+    }
+
+    /** Drops the cached listing of a directory so the next lookup queries the provider again. */
+    void invalidate(Node dir) {
+        synchronized (children) {
+            children.remove(dir.documentId);
+        }
+    }
+
+    private Node create(Node dir, String mimeType, String name) {
+        Uri uri;
+        try {
+            uri = DocumentsContract.createDocument(resolver, dir.uri, mimeType, name);
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "createDocument failed for " + name + ": " + e);
+            return null;
+        }
+        if (uri == null) return null;
+
+        // Cached under the requested name; a provider that renamed on conflict is only seen after invalidate()
+        Node node = new Node(treeUri, DocumentsContract.getDocumentId(uri), name, mimeType, 0,
+                System.currentTimeMillis());
+        synchronized (children) {
+            Map<String, Node> kids = children.get(dir.documentId);
+            if (kids != null) kids.put(name, node);
+        }
+        return node;
+    }
+
+    private Map<String, Node> childrenOf(Node dir) {
+        synchronized (children) {
+            Map<String, Node> cached = children.get(dir.documentId);
+            if (cached != null) return cached;
+        }
+
+        Map<String, Node> kids = query(dir);
+        synchronized (children) {
+            Map<String, Node> raced = children.get(dir.documentId);
+            if (raced != null) return raced;
+            children.put(dir.documentId, kids);
+            return kids;
+        }
+    }
+
+    private Map<String, Node> query(Node dir) {
+        Map<String, Node> kids = new ConcurrentHashMap<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, dir.documentId);
+        try (Cursor c = resolver.query(childrenUri, PROJECTION, null, null, null)) {
+            if (c == null) return kids;
+            while (c.moveToNext()) {
+                String id = c.getString(0);
+                String name = c.getString(1);
+                if (id == null || name == null) continue;
+                kids.put(name, new Node(treeUri, id, name, c.getString(2),
+                        c.isNull(3) ? 0 : c.getLong(3), c.isNull(4) ? 0 : c.getLong(4)));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Listing " + dir.name + " failed: " + e);
+        }
+        return kids;
+    }
+}
@@ -0,0 +1,105 @@
+package com.izzy.kart;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the file preparation that has to happen before SDL_main on a background executor.
+ *
+ * Stages are declared with the names of the stages they depend on; stages without a dependency
+ * between them run concurrently. Listener callbacks are always delivered on the main thread.
+ */
+final class StartupPipeline {
+    private static final String TAG = "StartupPipeline";
+    private static final int THREADS = 3;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    interface Listener {
+        void onStageStarted(String stage, int completed, int total);
+        void onStageFinished(String stage, int completed, int total);
+        void onPipelineFinished();
+    }
+
+    private static final class Stage {
+        final String name;
+        final Task task;
+        final String[] dependsOn;
+
+        Stage(String name, Task task, String[] dependsOn) {
+            this.name = name;
+            this.task = task;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    StartupPipeline stage(String name, Task task, String... dependsOn) {
+        for (String dep : dependsOn) {
+            if (!stages.containsKey(dep)) {
+                throw new IllegalArgumentException("Stage " + name + " depends on undeclared stage " + dep);
+            }
+        }
+        stages.put(name, new Stage(name, task, dependsOn));
+        return this;
+    }
+
+    void start(Listener listener) {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "StartupPipeline");
+            t.setDaemon(true);
+            return t;
+        });
+
+        final int total = stages.size();
+        final AtomicInteger completed = new AtomicInteger();
+        final Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+
+        for (Stage stage : stages.values()) {
+            List<CompletableFuture<Void>> deps = new ArrayList<>();
+            for (String dep : stage.dependsOn) deps.add(futures.get(dep));
+
+            CompletableFuture<Void> ready = CompletableFuture.allOf(deps.toArray(new CompletableFuture[0]));
+            futures.put(stage.name, ready.thenRunAsync(() -> runStage(stage, listener, completed, total), executor));
+        }
+
+        final long start = StartupTrace.begin();
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+            .whenComplete((v, err) -> {
+                StartupTrace.end("Startup pipeline", start);
+                executor.shutdown();
+                mainHandler.post(listener::onPipelineFinished);
+            });
+    }
+
+    private void runStage(Stage stage, Listener listener, AtomicInteger completed, int total) {
+        mainHandler.post(() -> listener.onStageStarted(stage.name, completed.get(), total));
+
+        long start = System.nanoTime();
+        try {
+            stage.task.run();
+        } catch (Exception e) {
+            // A failed stage must not block the rest of startup; the engine reports missing files itself
+            Log.e(TAG, "Stage " + stage.name + " failed", e);
+        }
+        StartupTrace.end("stage " + stage.name, start);
+        Log.i(TAG, "Stage " + stage.name + " took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        int done = completed.incrementAndGet();
+        mainHandler.post(() -> listener.onStageFinished(stage.name, done, total));
+    }
+}
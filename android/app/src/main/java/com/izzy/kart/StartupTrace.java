@@ -0,0 +1,110 @@
+package com.izzy.kart;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timeline of the launch, written as Chrome trace JSON to startup_trace.json in the save dir once the
+ * engine has drawn its first frame. Open it in Perfetto (ui.perfetto.dev) or chrome://tracing; keeping
+ * the files of two builds makes them easy to compare.
+ *
+ * Spans recorded here are merged with the ones the engine records itself (src/port/StartupTrace.cpp).
+ * Both sides read CLOCK_MONOTONIC, System.nanoTime() here and steady_clock there, and report kernel
+ * thread ids, so their spans share one timeline and threads line up.
+ */
+final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    static final String FILE_NAME = "startup_trace.json";
+
+    private static final StringBuilder events = new StringBuilder(); // comma-separated event objects
+    private static final Map<Integer, String> threadNames = new HashMap<>();
+    private static boolean finished;
+
+    private StartupTrace() {}
+
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /** Records a span on the current thread from startNanos (see begin()) until now. */
+    static void end(String name, long startNanos) {
+        record(name, startNanos, System.nanoTime(), false);
+    }
+
+    static void instant(String name) {
+        long now = System.nanoTime();
+        record(name, now, now, true);
+    }
+
+    /** Records the time from process creation (zygote fork) until now, the part before any app code runs. */
+    static void processStarted(String name) {
+        long sinceStartMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        end(name, System.nanoTime() - sinceStartMs * 1_000_000);
+    }
+
+    private static synchronized void record(String name, long start, long end, boolean instant) {
+        if (finished) return;
+        if (events.length() > 0) events.append(',');
+        events.append("{\"name\":\"").append(escape(name)).append("\",\"cat\":\"java\",\"ph\":\"")
+              .append(instant ? "i\",\"s\":\"p" : "X").append("\",\"ts\":").append(start / 1000);
+        if (!instant) events.append(",\"dur\":").append((end - start) / 1000);
+        int tid = Process.myTid();
+        events.append(",\"pid\":").append(Process.myPid()).append(",\"tid\":").append(tid).append('}');
+        if (!threadNames.containsKey(tid)) threadNames.put(tid, Thread.currentThread().getName());
+    }
+
+    /** Merges in the engine's events and writes the trace. Only the first call does anything. */
+    static void finish(File dir, String nativeEvents) {
+        StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+        synchronized (StartupTrace.class) {
+            if (finished) return;
+            finished = true;
+            json.append(events);
+            for (Map.Entry<Integer, String> thread : threadNames.entrySet()) {
+                if (json.charAt(json.length() - 1) != '[') json.append(',');
+                json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(Process.myPid())
+                    .append(",\"tid\":").append(thread.getKey())
+                    .append(",\"args\":{\"name\":\"").append(escape(thread.getValue())).append("\"}}");
+            }
+        }
+        if (nativeEvents != null && !nativeEvents.isEmpty()) {
+            if (json.charAt(json.length() - 1) != '[') json.append(',');
+            json.append(nativeEvents);
+        }
+        json.append("],\"displayTimeUnit\":\"ms\",\"otherData\":{\"version\":\"")
+            .append(escape(BuildConfig.VERSION_NAME + " (" + BuildConfig.VERSION_CODE + ")"))
+            .append("\",\"buildType\":\"").append(BuildConfig.BUILD_TYPE)
+            .append("\",\"device\":\"").append(escape(Build.MANUFACTURER + " " + Build.MODEL))
+            .append("\",\"sdk\":").append(Build.VERSION.SDK_INT).append("}}\n");
+
+        File file = new File(dir, FILE_NAME);
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + tmp, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not replace " + file);
+            tmp.delete();
+            return;
+        }
+        Log.i(TAG, "Startup trace written to " + file);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,411 @@
+package com.izzy.kart;
+
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The on-screen controller as a single touch target.
+ *
+ * One transparent view on top of the overlay receives every touch. Each new pointer is hit-tested
+ * against the controls' rectangles, which are computed whenever the overlay is laid out, and the
+ * control it lands on owns that pointer until it lifts. Every MotionEvent is then handled in one pass
+ * over its pointers, so accelerate held while tapping drift or items is just two owned pointers. The
+ * result is published to the ControllerState buffer the engine reads once per frame, at most once per
+ * event and only when something changed; touch handling makes no JNI calls.
+ *
+ * The joystick reads every sample the event batched (getHistoricalX/Y), not only the latest, and
+ * estimates the finger's velocity from the last STICK_WINDOW_MS of them. The velocity is published
+ * with the position, so the engine can extrapolate the stick to hide part of the touch-to-frame delay
+ * ("Stick prediction" in its menu). Every published state carries its event's timestamp so the engine
+ * can measure that delay.
+ *
+ * A first pointer that lands on no control is declined, so it reaches the SDL surface below (the
+ * in-game menu needs those).
+ */
+final class TouchControls implements View.OnTouchListener {
+    private static final int MAX_POINTERS = 16;
+    // SDL's trigger axes, which the negative button codes (Z, RB) drive; released is -max, not 0
+    private static final int LEFT_TRIGGER_AXIS = 4;
+    private static final int RIGHT_TRIGGER_AXIS = 5;
+    private static final short TRIGGER_RELEASED = -Short.MAX_VALUE;
+    private static final int STICK_SAMPLES = 16;
+    private static final long STICK_WINDOW_MS = 48;
+
+    interface Listener {
+        void onMenu(boolean pressed);
+        void onToggle();
+        void onToggleLongPress();
+    }
+
+    private static final int KIND_BUTTON = 0; // code >= 0: SDL button, code < 0: trigger axis -code
+    private static final int KIND_AXIS = 1;   // holds axis code at value (the C buttons)
+    private static final int KIND_STICK = 2;
+    private static final int KIND_LOOK = 3;
+    private static final int KIND_MENU = 4;
+    private static final int KIND_TOGGLE = 5;
+
+    private static final class Control {
+        final View view;
+        final int kind;
+        final int code;
+        final short value;
+        final RectF rect = new RectF();
+
+        Control(View view, int kind, int code, short value) {
+            this.view = view;
+            this.kind = kind;
+            this.code = code;
+            this.value = value;
+        }
+    }
+
+    private final View surface;
+    private final ControllerState state;
+    private final Listener listener;
+    private final List<Control> controls = new ArrayList<>(); // hit-tested in this order
+    private final Control[] owners = new Control[MAX_POINTERS];
+    private final float[] lastX = new float[MAX_POINTERS];
+    private final float[] lastY = new float[MAX_POINTERS];
+    private final int[] location = new int[2];
+
+    private Control stick;
+    private View stickKnob;
+    // Ring of recent stick samples: position in surface pixels, time in uptime milliseconds
+    private final float[] stickSampleX = new float[STICK_SAMPLES];
+    private final float[] stickSampleY = new float[STICK_SAMPLES];
+    private final long[] stickSampleTime = new long[STICK_SAMPLES];
+    private int stickSampleCount;
+    private int stickSampleNext;
+    private float stickVelocityX; // pixels per millisecond
+    private float stickVelocityY;
+    private final float[] stickVelocity = new float[2]; // as published: full deflections per second
+    private final float[] sentStickVelocity = new float[2];
+    private boolean controlsEnabled = true;
+    private boolean lookEnabled = true;
+    private boolean unbufferedDispatch;
+    private boolean toggleLongPressed;
+    private final Runnable toggleLongPress;
+
+    private final short[] axes = new short[ControllerState.AXIS_COUNT];
+    private final short[] sentAxes = new short[ControllerState.AXIS_COUNT];
+    private int sentButtons;
+    private double lookX; // inches
+    private double lookY;
+    private long lookTime; // uptime milliseconds
+    private float xdpi = 160f;
+    private float ydpi = 160f;
+
+    TouchControls(View surface, ControllerState state, Listener listener) {
+        this.surface = surface;
+        this.state = state;
+        this.listener = listener;
+        this.toggleLongPress = () -> {
+            toggleLongPressed = true;
+            listener.onToggleLongPress();
+        };
+        surface.setOnTouchListener(this);
+    }
+
+    // Controls are hit-tested in the order they are added, so add the ones drawn on top first.
+    TouchControls addToggle(View view) {
+        return add(new Control(view, KIND_TOGGLE, 0, (short) 0));
+    }
+
+    TouchControls addMenu(View view) {
+        return add(new Control(view, KIND_MENU, 0, (short) 0));
+    }
+
+    TouchControls addButton(View view, int code) {
+        return add(new Control(view, KIND_BUTTON, code, (short) 0));
+    }
+
+    TouchControls addAxisButton(View view, int axis, short value) {
+        return add(new Control(view, KIND_AXIS, axis, value));
+    }
+
+    TouchControls addStick(View view, View knob) {
+        stick = new Control(view, KIND_STICK, 0, (short) 0);
+        stickKnob = knob;
+        return add(stick);
+    }
+
+    TouchControls addLookArea(View view) {
+        return add(new Control(view, KIND_LOOK, 0, (short) 0));
+    }
+
+    private TouchControls add(Control control) {
+        controls.add(control);
+        return this;
+    }
+
+    /** Recomputes the controls' rectangles in surface coordinates; call after the overlay is laid out. */
+    void updateLayout() {
+        surface.getLocationInWindow(location);
+        int surfaceX = location[0];
+        int surfaceY = location[1];
+        for (Control control : controls) {
+            control.view.getLocationInWindow(location);
+            float left = location[0] - surfaceX;
+            float top = location[1] - surfaceY;
+            control.rect.set(left, top, left + control.view.getWidth(), top + control.view.getHeight());
+        }
+    }
+
+    /** While disabled (the in-game menu is open) only the menu and toggle buttons respond. */
+    void setControlsEnabled(boolean enabled) {
+        controlsEnabled = enabled;
+        if (!enabled) releaseAll(false);
+    }
+
+    /**
+     * Low-latency mode: each gesture on the controls asks for its events as they arrive, rather than
+     * batched once per vsync, so the engine's next frame sees the newest position.
+     */
+    void setUnbufferedDispatch(boolean enabled) {
+        unbufferedDispatch = enabled;
+    }
+
+    /** Physical pixel density, so look-around is measured in inches of finger travel. */
+    void setLookDpi(float xdpi, float ydpi) {
+        if (xdpi > 0) this.xdpi = xdpi;
+        if (ydpi > 0) this.ydpi = ydpi;
+    }
+
+    /** The look-around area; the engine turns it off while ImGui wants the pointer. */
+    void setLookEnabled(boolean enabled) {
+        lookEnabled = enabled;
+    }
+
+    @Override
+    public boolean onTouch(View v, MotionEvent event) {
+        int action = event.getActionMasked();
+        int actionIndex = event.getActionIndex();
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN: {
+                int id = event.getPointerId(actionIndex);
+                Control control = hitTest(event.getX(actionIndex), event.getY(actionIndex));
+                if (control == null || id >= MAX_POINTERS) {
+                    if (action == MotionEvent.ACTION_DOWN) return false;
+                    break;
+                }
+                if (action == MotionEvent.ACTION_DOWN && unbufferedDispatch) surface.requestUnbufferedDispatch(event);
+                owners[id] = control;
+                lastX[id] = event.getX(actionIndex);
+                lastY[id] = event.getY(actionIndex);
+                press(control);
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP: {
+                int id = event.getPointerId(actionIndex);
+                if (id < MAX_POINTERS && owners[id] != null) {
+                    Control control = owners[id];
+                    owners[id] = null;
+                    release(control, true);
+                }
+                break;
+            }
+            case MotionEvent.ACTION_CANCEL:
+                releaseAll(true);
+                break;
+        }
+
+        boolean lifting = action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP;
+        update(event, lifting ? actionIndex : -1);
+        return true;
+    }
+
+    private Control hitTest(float x, float y) {
+        for (Control control : controls) {
+            if (!control.view.isShown() || !control.rect.contains(x, y)) continue;
+            boolean alwaysOn = control.kind == KIND_MENU || control.kind == KIND_TOGGLE;
+            if (!alwaysOn && !controlsEnabled) continue;
+            if (control.kind == KIND_LOOK && !lookEnabled) continue;
+            return control;
+        }
+        return null;
+    }
+
+    private void press(Control control) {
+        control.view.setPressed(true);
+        if (control.kind == KIND_MENU) {
+            listener.onMenu(true);
+        } else if (control.kind == KIND_STICK) {
+            stickSampleCount = 0;
+        } else if (control.kind == KIND_TOGGLE) {
+            toggleLongPressed = false;
+            surface.postDelayed(toggleLongPress, ViewConfiguration.getLongPressTimeout());
+        }
+    }
+
+    // completed is false when the press is abandoned (cancel, controls disabled) rather than lifted
+    private void release(Control control, boolean completed) {
+        control.view.setPressed(false);
+        if (control.kind == KIND_MENU) {
+            listener.onMenu(false);
+        } else if (control.kind == KIND_TOGGLE) {
+            surface.removeCallbacks(toggleLongPress);
+            if (completed && !toggleLongPressed) listener.onToggle();
+        } else if (control.kind == KIND_STICK) {
+            centerKnob(0, 0);
+        }
+    }
+
+    private void releaseAll(boolean completed) {
+        for (int id = 0; id < MAX_POINTERS; id++) {
+            Control control = owners[id];
+            if (control == null) continue;
+            // Disabling the controls from the menu button must not release the menu button itself
+            if (!completed && (control.kind == KIND_MENU || control.kind == KIND_TOGGLE)) continue;
+            owners[id] = null;
+            release(control, completed);
+        }
+        if (!completed) {
+            clearAxes();
+            Arrays.fill(stickVelocity, 0f);
+            sendState(0, false, SystemClock.uptimeMillis());
+        }
+    }
+
+
+    // One pass over the event's pointers; skip is the index of a pointer that is lifting, or -1
+    private void update(MotionEvent event, int skip) {
+        int buttons = 0;
+        clearAxes();
+        Arrays.fill(stickVelocity, 0f);
+        float lookDx = 0;
+        float lookDy = 0;
+
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            int id = event.getPointerId(i);
+            if (i == skip || id >= MAX_POINTERS || owners[id] == null) continue;
+            Control control = owners[id];
+            float x = event.getX(i);
+            float y = event.getY(i);
+
+            switch (control.kind) {
+                case KIND_BUTTON:
+                    if (control.code >= 0) {
+                        buttons |= 1 << control.code;
+                    } else {
+                        axes[-control.code] = Short.MAX_VALUE;
+                    }
+                    break;
+                case KIND_AXIS:
+                    axes[control.code] = control.value;
+                    break;
+                case KIND_STICK:
+                    for (int h = 0; h < event.getHistorySize(); h++) {
+                        addStickSample(event.getHistoricalX(i, h), event.getHistoricalY(i, h),
+                                event.getHistoricalEventTime(h));
+                    }
+                    addStickSample(x, y, event.getEventTime());
+                    updateStick(x, y);
+                    break;
+                case KIND_LOOK:
+                    lookDx += x - lastX[id];
+                    lookDy += y - lastY[id];
+                    break;
+            }
+            lastX[id] = x;
+            lastY[id] = y;
+        }
+
+        boolean looked = lookDx != 0 || lookDy != 0;
+        if (looked) {
+            lookX += lookDx / xdpi;
+            lookY += lookDy / ydpi;
+            lookTime = event.getEventTime();
+        }
+        sendState(buttons, looked, event.getEventTime());
+    }
+
+    private void addStickSample(float x, float y, long time) {
+        stickSampleX[stickSampleNext] = x;
+        stickSampleY[stickSampleNext] = y;
+        stickSampleTime[stickSampleNext] = time;
+        stickSampleNext = (stickSampleNext + 1) % STICK_SAMPLES;
+        stickSampleCount = Math.min(stickSampleCount + 1, STICK_SAMPLES);
+    }
+
+    // Least-squares slope of position over time for the samples in the last STICK_WINDOW_MS
+    private void estimateStickVelocity() {
+        int newest = (stickSampleNext + STICK_SAMPLES - 1) % STICK_SAMPLES;
+        long now = stickSampleTime[newest];
+        int n = 0;
+        float sumT = 0, sumX = 0, sumY = 0;
+        for (int k = 0; k < stickSampleCount; k++) {
+            int s = (newest - k + STICK_SAMPLES) % STICK_SAMPLES;
+            if (now - stickSampleTime[s] > STICK_WINDOW_MS) break;
+            sumT += stickSampleTime[s] - now;
+            sumX += stickSampleX[s];
+            sumY += stickSampleY[s];
+            n++;
+        }
+        stickVelocityX = 0;
+        stickVelocityY = 0;
+        if (n < 2) return;
+
+        float meanT = sumT / n, meanX = sumX / n, meanY = sumY / n;
+        float tt = 0, tx = 0, ty = 0;
+        for (int k = 0; k < n; k++) {
+            int s = (newest - k + STICK_SAMPLES) % STICK_SAMPLES;
+            float dt = stickSampleTime[s] - now - meanT;
+            tt += dt * dt;
+            tx += dt * (stickSampleX[s] - meanX);
+            ty += dt * (stickSampleY[s] - meanY);
+        }
+        if (tt == 0) return; // every sample in the same millisecond
+        stickVelocityX = tx / tt;
+        stickVelocityY = ty / tt;
+    }
+
+    private void updateStick(float x, float y) {
+        float radius = stick.rect.width() / 2f - stickKnob.getWidth() / 2f;
+        float dx = x - stick.rect.centerX();
+        float dy = y - stick.rect.centerY();
+        float scale = clampScale(dx, dy, radius);
+        centerKnob(dx * scale, dy * scale);
+        axes[ControllerButtons.AXIS_LX] = (short) (dx * scale / radius * Short.MAX_VALUE);
+        axes[ControllerButtons.AXIS_LY] = (short) (dy * scale / radius * Short.MAX_VALUE);
+
+        estimateStickVelocity();
+        stickVelocity[0] = stickVelocityX * 1000f / radius;
+        stickVelocity[1] = stickVelocityY * 1000f / radius;
+    }
+
+    private static float clampScale(float dx, float dy, float radius) {
+        float distance = (float) Math.sqrt(dx * dx + dy * dy);
+        return distance > radius ? radius / distance : 1f;
+    }
+
+    private void centerKnob(float dx, float dy) {
+        stickKnob.setX(stick.view.getWidth() / 2f + dx - stickKnob.getWidth() / 2f);
+        stickKnob.setY(stick.view.getHeight() / 2f + dy - stickKnob.getHeight() / 2f);
+    }
+
+    private void clearAxes() {
+        Arrays.fill(axes, (short) 0);
+        axes[LEFT_TRIGGER_AXIS] = TRIGGER_RELEASED;
+        axes[RIGHT_TRIGGER_AXIS] = TRIGGER_RELEASED;
+    }
+
+    // eventTime is in uptime milliseconds, the MotionEvent clock
+    private void sendState(int buttons, boolean looked, long eventTime) {
+        if (!looked && buttons == sentButtons && Arrays.equals(axes, sentAxes)
+                && Arrays.equals(stickVelocity, sentStickVelocity)) return;
+        sentButtons = buttons;
+        System.arraycopy(axes, 0, sentAxes, 0, axes.length);
+        System.arraycopy(stickVelocity, 0, sentStickVelocity, 0, stickVelocity.length);
+        state.publish(buttons, axes, stickVelocity[0], stickVelocity[1], lookX, lookY, lookTime * 1_000_000L,
+                eventTime * 1_000_000L);
+    }
+}
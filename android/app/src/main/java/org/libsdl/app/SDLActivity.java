@@ -222,6 +222,9 @@ public class SDLActivity extends Activity implements View.OnSystemUiVisibilityCh
     // This is what SDL runs in. It invokes SDL_main(), eventually
     protected static Thread mSDLThread;
 
+    // While closed, SDL_main is not started even if the surface is ready (see openMainThreadGate())
+    protected static boolean mMainThreadGateOpen;
+
     protected static SDLGenericMotionListener_API12 getMotionListener() {
         if (mMotionListener == null) {
             if (Build.VERSION.SDK_INT >= 26 /* Android 8.0 (O) */) {
@@ -306,6 +309,7 @@ public class SDLActivity extends Activity implements View.OnSystemUiVisibilityCh
         mCursors = new Hashtable<Integer, PointerIcon>();
         mLastCursorID = 0;
         mSDLThread = null;
+        mMainThreadGateOpen = true;
         mIsResumedCalled = false;
         mHasFocus = true;
         mNextNativeState = NativeState.INIT;
@@ -705,6 +709,11 @@ public class SDLActivity extends Activity implements View.OnSystemUiVisibilityCh
         if (mNextNativeState == NativeState.RESUMED) {
             if (mSurface.mIsSurfaceReady && mHasFocus && mIsResumedCalled) {
                 if (mSDLThread == null) {
+                    if (!mMainThreadGateOpen) {
+                        // Startup work is still running; openMainThreadGate() retries this transition.
+                        return;
+                    }
+
                     // This is the entry point to the C app.
                     // Start up the C app thread and enable sensor input for the first time
                     // FIXME: Why aren't we enabling sensor input at start?
@@ -724,6 +733,25 @@ public class SDLActivity extends Activity implements View.OnSystemUiVisibilityCh
         }
     }
 
+    /**
+     * Holds back the start of SDL_main until {@link #openMainThreadGate()} is called.
+     * Must be called from the UI thread, after onCreate() has initialized SDL.
+     */
+    public static void closeMainThreadGate() {
+        mMainThreadGateOpen = false;
+    }
+
+    /**
+     * Allows SDL_main to start and retries the pending state transition.
+     * Must be called from the UI thread.
+     */
+    public static void openMainThreadGate() {
+        mMainThreadGateOpen = true;
+        if (!mBrokenLibraries && mSurface != null) {
+            handleNativeState();
+        }
+    }
+
     // Messages from the SDLMain thread
     static final int COMMAND_CHANGE_TITLE = 1;
     static final int COMMAND_CHANGE_WINDOW_STYLE = 2;
@@ -33,6 +33,12 @@ void Ship::Mobile::ImGuiProcessEvent(bool wantsTextInput) {
 #ifdef __ANDROID__
 #include <SDL_gamecontroller.h>
 #include <jni.h>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstring>
+#include <vector>
 
 bool Ship::Mobile::IsUsingTouchscreenControls(){
     return isUsingTouchscreenControls;
@@ -54,6 +60,22 @@ void Ship::Mobile::DisableTouchArea(){
     env->CallVoidMethod(javaObject, disabletoucharea);
 }
 
+void Ship::Mobile::SetUnbufferedTouch(bool enabled) {
+    JNIEnv* env = (JNIEnv*)SDL_AndroidGetJNIEnv();
+    jobject javaObject = (jobject)SDL_AndroidGetActivity();
+    jclass javaClass = env->GetObjectClass(javaObject);
+    jmethodID setUnbufferedTouch = env->GetMethodID(javaClass, "SetUnbufferedTouch", "(Z)V");
+    env->CallVoidMethod(javaObject, setUnbufferedTouch, (jboolean)enabled);
+}
+
+void Ship::Mobile::ShowModManager() {
+    JNIEnv* env = (JNIEnv*)SDL_AndroidGetJNIEnv();
+    jobject javaObject = (jobject)SDL_AndroidGetActivity();
+    jclass javaClass = env->GetObjectClass(javaObject);
+    jmethodID showModManager = env->GetMethodID(javaClass, "ShowModManager", "()V");
+    env->CallVoidMethod(javaObject, showModManager);
+}
+
 float Ship::Mobile::GetCameraYaw(){
     return cameraYaw;
 }
@@ -79,29 +101,234 @@ extern "C" void JNICALL Java_com_izzy_kart_MainActivity_attachController(JNIEnv*
     isUsingTouchscreenControls = true;
 }
 
-extern "C" void JNICALL Java_com_izzy_kart_MainActivity_setCameraState(JNIEnv *env, jobject jobj, jint axis, jfloat value) {
-    switch(axis){
-        case 0:
-            cameraYaw=value;
-            break;
-        case 1:
-            cameraPitch=value;
-            break;
+// Shared with ControllerState.java, which publishes it from the UI thread under a sequence lock: Sequence
+// is odd while a write is in progress and changes with every write.
+struct TouchControllerState {
+    uint32_t Sequence;
+    uint32_t Buttons; // bit n = virtual button n
+    int16_t Axes[6];
+    uint32_t Reserved;
+    double LookX; // running totals of the look-around movement, in inches of finger travel
+    double LookY;
+    int64_t EventTime; // CLOCK_MONOTONIC nanoseconds of the touch event this state came from
+    int64_t LookTime;  // same clock, the last event that moved LookX/LookY
+    float StickVelocityX; // full stick deflections per second, 0 while the stick isn't held
+    float StickVelocityY;
+};
+static_assert(sizeof(TouchControllerState) == 64, "must match ControllerState.SIZE");
+
+static constexpr int kOverlayAxisCount = 6;
+static constexpr int kOverlayButtonCount = 18;
+static constexpr int kSnapshotAttempts = 64;
+static constexpr float kDefaultLookSensitivity = 120.0f; // degrees per inch of finger travel
+static constexpr int64_t kLookRestNs = 50'000'000;       // no look event for this long: the finger rests
+static constexpr int64_t kStickRestNs = 50'000'000;      // same for the joystick, which then isn't extrapolated
+
+static jobject touchStateBuffer = nullptr; // global ref, keeps the buffer alive
+static const TouchControllerState* touchState = nullptr;
+static TouchControllerState lastTouchState = {};
+static int64_t touchInputLatency = -1;
+static int64_t lastPollTime = 0;
+
+// One look-around axis: the angle still to turn, and the finger's angular velocity measured on the
+// touch events' own timestamps
+struct LookAxis {
+    double Pending = 0.0; // radians
+    double Rate = 0.0;    // radians per second
+
+    // Turns at the finger's speed for this frame, never past what is pending, so uneven event batching
+    // doesn't make the camera stutter. Whatever is left goes at once when the finger rests, reverses,
+    // or has just started moving (no rate yet).
+    float Take(double frameSeconds, bool resting) {
+        const double step = Rate * frameSeconds;
+        double taken = Pending;
+        if (!resting && step * Pending > 0.0 && std::abs(step) < std::abs(Pending)) {
+            taken = step;
+        }
+        Pending -= taken;
+        return (float)taken;
+    }
+};
+
+static LookAxis lookYaw;
+static LookAxis lookPitch;
+
+// Latency probe: the newest samples of how old touch input was when a frame picked it up, and when
+// that frame was presented
+static constexpr size_t kLatencySamples = 256;
+
+struct LatencyRing {
+    int64_t Values[kLatencySamples];
+    size_t Count = 0;
+    size_t Next = 0;
+
+    void Add(int64_t value) {
+        Values[Next] = value;
+        Next = (Next + 1) % kLatencySamples;
+        Count = std::min(Count + 1, kLatencySamples);
+    }
+};
+
+static LatencyRing consumeLatencies;
+static LatencyRing presentLatencies;
+static int64_t pendingPresentEventTime = 0;
+
+// steady_clock is CLOCK_MONOTONIC, the clock MotionEvent times are taken from
+static int64_t MonotonicNow() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now().time_since_epoch())
+        .count();
+}
+
+extern "C" void JNICALL Java_com_izzy_kart_MainActivity_nativeSetControllerBuffer(JNIEnv* env, jclass clazz,
+                                                                                jobject buffer) {
+    if (env->GetDirectBufferCapacity(buffer) < (jlong)sizeof(TouchControllerState)) {
+        SDL_Log("Touch controller buffer is too small");
+        return;
+    }
+    if (touchStateBuffer != nullptr) {
+        env->DeleteGlobalRef(touchStateBuffer);
+    }
+    touchStateBuffer = env->NewGlobalRef(buffer);
+    touchState = (const TouchControllerState*)env->GetDirectBufferAddress(touchStateBuffer);
+}
+
+// Copies the shared state without ever returning a half-written one
+static bool SnapshotTouchState(TouchControllerState& out) {
+    for (int i = 0; i < kSnapshotAttempts; i++) {
+        uint32_t begin = __atomic_load_n(&touchState->Sequence, __ATOMIC_ACQUIRE);
+        if (begin & 1) {
+            continue;
+        }
+        std::memcpy(&out, (const void*)touchState, sizeof(out));
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (__atomic_load_n(&touchState->Sequence, __ATOMIC_RELAXED) == begin) {
+            return true;
+        }
+    }
+    return false;
+}
+
+int64_t Ship::Mobile::GetTouchInputLatency() {
+    return touchInputLatency;
+}
+
+void Ship::Mobile::OnFramePresented() {
+    if (pendingPresentEventTime != 0) {
+        presentLatencies.Add(MonotonicNow() - pendingPresentEventTime);
+        pendingPresentEventTime = 0;
     }
 }
 
-extern "C" void JNICALL Java_com_izzy_kart_MainActivity_setButton(JNIEnv *env, jobject jobj, jint button, jboolean value) {
-    if(button < 0){
-        SDL_JoystickSetVirtualAxis(virtual_joystick,-button, value ? SDL_MAX_SINT16 : -SDL_MAX_SINT16); // This should be 0 when false, but I think there's a bug in SDL
-    }else{
-        SDL_JoystickSetVirtualButton(virtual_joystick, button, value);
+// Nearest-rank percentiles, in milliseconds
+static void LatencyPercentiles(const LatencyRing& ring, float& p50, float& p95, float& p99) {
+    std::vector<int64_t> sorted(ring.Values, ring.Values + ring.Count);
+    std::sort(sorted.begin(), sorted.end());
+    auto rank = [&](double p) {
+        size_t index = (size_t)std::ceil(p * sorted.size());
+        return sorted[std::max<size_t>(index, 1) - 1] / 1e6f;
+    };
+    p50 = sorted.empty() ? 0.0f : rank(0.50);
+    p95 = sorted.empty() ? 0.0f : rank(0.95);
+    p99 = sorted.empty() ? 0.0f : rank(0.99);
+}
+
+Ship::TouchLatencyStats Ship::Mobile::GetTouchLatencyStats() {
+    TouchLatencyStats stats = {};
+    stats.ConsumeSamples = consumeLatencies.Count;
+    stats.PresentSamples = presentLatencies.Count;
+    LatencyPercentiles(consumeLatencies, stats.ConsumeP50, stats.ConsumeP95, stats.ConsumeP99);
+    LatencyPercentiles(presentLatencies, stats.PresentP50, stats.PresentP95, stats.PresentP99);
+    return stats;
+}
+
+void Ship::Mobile::ResetTouchLatencyStats() {
+    consumeLatencies = {};
+    presentLatencies = {};
+    pendingPresentEventTime = 0;
+}
+
+// Adds the look-around movement since the last snapshot, converted to radians, and measures its rate
+static void AccumulateLook(const TouchControllerState& state) {
+    const double dx = state.LookX - lastTouchState.LookX;
+    const double dy = state.LookY - lastTouchState.LookY;
+    lastTouchState.LookX = state.LookX;
+    lastTouchState.LookY = state.LookY;
+    if (dx == 0.0 && dy == 0.0) {
+        return;
     }
+
+    const double radiansPerInch = CVarGetFloat("gTouchLookSensitivity", kDefaultLookSensitivity) * M_PI / 180.0;
+    lookYaw.Pending += dx * radiansPerInch;
+    lookPitch.Pending += dy * radiansPerInch;
+
+    // The rate spans the events since the last movement this code saw; after a rest there is none
+    const int64_t elapsed = state.LookTime - lastTouchState.LookTime;
+    const bool moving = lastTouchState.LookTime != 0 && elapsed > 0 && elapsed <= kLookRestNs;
+    lookYaw.Rate = moving ? dx * radiansPerInch * 1e9 / elapsed : 0.0;
+    lookPitch.Rate = moving ? dy * radiansPerInch * 1e9 / elapsed : 0.0;
+    lastTouchState.LookTime = state.LookTime;
 }
 
-#include "Context.h"
+// Moves the joystick ahead along the finger's velocity by the "Stick prediction" setting, which hides that much of
+// the touch-to-screen delay. Off by default since it overshoots on sharp turns; a resting finger isn't extrapolated.
+static void PredictStick(TouchControllerState& state, int64_t now) {
+    const int predictionMs = CVarGetInteger("gTouchStickPredictionMs", 0);
+    if (predictionMs <= 0 || now - state.EventTime > kStickRestNs ||
+        (state.StickVelocityX == 0.0f && state.StickVelocityY == 0.0f)) {
+        return;
+    }
+
+    float x = state.Axes[0] / 32767.0f + state.StickVelocityX * predictionMs / 1000.0f;
+    float y = state.Axes[1] / 32767.0f + state.StickVelocityY * predictionMs / 1000.0f;
+    const float length = std::sqrt(x * x + y * y);
+    if (length > 1.0f) {
+        x /= length;
+        y /= length;
+    }
+    state.Axes[0] = (int16_t)(x * 32767.0f);
+    state.Axes[1] = (int16_t)(y * 32767.0f);
+}
+
+void Ship::Mobile::PollTouchControls() {
+    const int64_t now = MonotonicNow();
+    const double frameSeconds = lastPollTime != 0 ? (now - lastPollTime) / 1e9 : 0.0;
+    lastPollTime = now;
+    touchInputLatency = -1;
+
+    // Without a snapshot (nothing published yet, or the UI thread kept writing) last frame's state stays
+    TouchControllerState state;
+    const bool haveState = touchState != nullptr && SnapshotTouchState(state);
+    if (haveState) {
+        if (state.Sequence != lastTouchState.Sequence) {
+            touchInputLatency = now - state.EventTime;
+            consumeLatencies.Add(touchInputLatency);
+            pendingPresentEventTime = state.EventTime;
+            lastTouchState.Sequence = state.Sequence;
+        }
+        AccumulateLook(state);
+    }
 
-extern "C" void JNICALL Java_com_izzy_kart_MainActivity_setAxis(JNIEnv *env, jobject jobj, jint axis, jshort value) {
-    SDL_JoystickSetVirtualAxis(virtual_joystick, axis, value);
+    const bool resting = now - lastTouchState.LookTime > kLookRestNs;
+    cameraYaw = lookYaw.Take(frameSeconds, resting);
+    cameraPitch = lookPitch.Take(frameSeconds, resting);
+
+    if (!haveState || virtual_joystick == nullptr) {
+        return;
+    }
+    PredictStick(state, now);
+    for (int i = 0; i < kOverlayAxisCount; i++) {
+        if (state.Axes[i] != lastTouchState.Axes[i]) {
+            SDL_JoystickSetVirtualAxis(virtual_joystick, i, state.Axes[i]);
+            lastTouchState.Axes[i] = state.Axes[i];
+        }
+    }
+    uint32_t changed = state.Buttons ^ lastTouchState.Buttons;
+    for (int i = 0; i < kOverlayButtonCount; i++) {
+        if (changed & (1u << i)) {
+            SDL_JoystickSetVirtualButton(virtual_joystick, i, (state.Buttons >> i) & 1);
+        }
+    }
+    lastTouchState.Buttons = state.Buttons;
 }
 
 extern "C" void JNICALL Java_com_izzy_kart_MainActivity_detachController(JNIEnv *env, jobject jobj) {
@@ -109,6 +336,9 @@ extern "C" void JNICALL Java_com_izzy_kart_MainActivity_detachController(JNIEnv
     SDL_JoystickDetachVirtual(virtual_joystick_id);
     virtual_joystick = nullptr;
     virtual_joystick_id = -1;
+    // Apply the whole state to the next virtual joystick, not just what changes after it attaches
+    std::memset(lastTouchState.Axes, 0, sizeof(lastTouchState.Axes));
+    lastTouchState.Buttons = 0;
     isUsingTouchscreenControls = false;
 }
 
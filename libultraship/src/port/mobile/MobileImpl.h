@@ -1,5 +1,6 @@
 #pragma once
 
+#include <cstddef>
 #include <cstdint>
 #include <string>
 
@@ -7,12 +8,33 @@
 
 namespace Ship {
 
+struct TouchLatencyStats {
+    size_t ConsumeSamples;
+    size_t PresentSamples;
+    // Milliseconds from the touch event to the frame that picked it up, and to that frame's present
+    float ConsumeP50, ConsumeP95, ConsumeP99;
+    float PresentP50, PresentP95, PresentP99;
+};
+
 class Mobile {
   public:
     static void ImGuiProcessEvent(bool wantsTextInput);
     static bool IsUsingTouchscreenControls();
     static void EnableTouchArea();
     static void DisableTouchArea();
+    // Once per frame: applies the touch overlay's state to its virtual controller
+    static void PollTouchControls();
+    // Age in nanoseconds of the touch input the last PollTouchControls() picked up, -1 if nothing was new
+    static int64_t GetTouchInputLatency();
+    // Call once the frame that ran after PollTouchControls() is on screen
+    static void OnFramePresented();
+    static TouchLatencyStats GetTouchLatencyStats();
+    static void ResetTouchLatencyStats();
+    // Asks for touch events as they arrive instead of batched once per vsync
+    static void SetUnbufferedTouch(bool enabled);
+    // Opens the app's mod manager (enable, disable and reorder mods) over the game
+    static void ShowModManager();
+    // Radians the look-around area turns the camera this frame, set by PollTouchControls()
     static float GetCameraYaw();
     static float GetCameraPitch();
 };
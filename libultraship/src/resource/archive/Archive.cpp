@@ -4,6 +4,7 @@
 
 #include "Context.h"
 #include "resource/File.h"
+#include "resource/archive/ArchiveIndexCache.h"
 #include "resource/ResourceLoader.h"
 #include "resource/ResourceType.h"
 #include "utils/binarytools/MemoryStream.h"
@@ -31,7 +32,6 @@ void Archive::Load() {
     bool opened = Open();
 
     auto t = LoadFile("version");
-    bool isGameVersionValid = false;
     if (t != nullptr && t->IsLoaded) {
         mHasGameVersion = true;
         auto stream = std::make_shared<MemoryStream>(t->Buffer->data(), t->Buffer->size());
@@ -39,6 +39,26 @@ void Archive::Load() {
         Endianness endianness = (Endianness)reader->ReadUByte();
         reader->SetEndianness(endianness);
         SetGameVersion(reader->ReadUInt32());
+    }
+
+    FinishLoad(opened);
+}
+
+void Archive::Load(const ArchiveIndexEntry& cached) {
+    mHashes = cached.Files;
+    bool opened = OpenIndexed();
+    mHasGameVersion = cached.HasGameVersion;
+    SetGameVersion(cached.GameVersion);
+    FinishLoad(opened);
+}
+
+bool Archive::OpenIndexed() {
+    return Open();
+}
+
+void Archive::FinishLoad(bool opened) {
+    bool isGameVersionValid = false;
+    if (mHasGameVersion) {
         isGameVersionValid =
             Context::GetInstance()->GetResourceManager()->GetArchiveManager()->IsGameVersionValid(GetGameVersion());
 
@@ -16,6 +16,7 @@ namespace Ship {
 
 struct File;
 struct ResourceInitData;
+struct ArchiveIndexEntry;
 
 class Archive : public std::enable_shared_from_this<Archive> {
     friend class ArchiveManager;
@@ -27,6 +28,8 @@ class Archive : public std::enable_shared_from_this<Archive> {
     bool operator==(const Archive& rhs) const;
 
     void Load();
+    // Takes the file list and game version from an index of this archive instead of reading them from it.
+    void Load(const ArchiveIndexEntry& cached);
     void Unload();
 
     virtual std::shared_ptr<File> LoadFile(const std::string& filePath) = 0;
@@ -45,11 +48,16 @@ class Archive : public std::enable_shared_from_this<Archive> {
     virtual bool WriteFile(const std::string& filename, const std::vector<uint8_t>& data) = 0;
 
   protected:
+    // Opens the archive for Load(const ArchiveIndexEntry&). Archives that can defer opening until a file is
+    // read override this; by default it is a full Open().
+    virtual bool OpenIndexed();
     void SetLoaded(bool isLoaded);
     void SetGameVersion(uint32_t gameVersion);
     void IndexFile(const std::string& filePath);
 
   private:
+    void FinishLoad(bool opened);
+
     bool mIsLoaded;
     bool mHasGameVersion;
     uint32_t mGameVersion;
@@ -0,0 +1,288 @@
+#include "ArchiveIndexCache.h"
+
+#include <cstdio>
+#include <cstring>
+#include <filesystem>
+#include <sys/stat.h>
+#ifdef _WIN32
+#include <io.h>
+#else
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#endif
+#include "spdlog/spdlog.h"
+
+#include "resource/archive/Archive.h"
+#include "resource/archive/ArchiveManager.h"
+
+namespace Ship {
+// Layout, native byte order: a header, then one record per archive:
+//   u64 record size, u64 archive size, u64 offset, i64 mtime, u32 path length, u32 file count,
+//   u32 game version, u32 has game version, the path, then per file: u64 hash, u32 name length, the name.
+static constexpr char kMagic[4] = { 'L', 'U', 'S', 'I' };
+static constexpr uint32_t kFormatVersion = 1;
+static constexpr size_t kHeaderSize = 16;
+static constexpr size_t kRecordHeaderSize = 48;
+
+template <typename T> static T Read(const uint8_t* data) {
+    T value;
+    memcpy(&value, data, sizeof(T));
+    return value;
+}
+
+template <typename T> static void Write(std::vector<uint8_t>& out, T value) {
+    const auto* bytes = reinterpret_cast<const uint8_t*>(&value);
+    out.insert(out.end(), bytes, bytes + sizeof(T));
+}
+
+ArchiveIndexCache::ArchiveIndexCache(const std::string& indexPath) : mIndexPath(indexPath) {
+    Map();
+    if (mData != nullptr && !ReadRecords()) {
+        SPDLOG_WARN("Discarding unreadable archive index {}", mIndexPath);
+        mRecords.clear();
+    }
+}
+
+ArchiveIndexCache::~ArchiveIndexCache() {
+    Unmap();
+}
+
+bool ArchiveIndexCache::GetStamp(const std::string& archivePath, ArchiveStamp& stamp) {
+    ArchiveDescriptor descriptor;
+    const bool hasDescriptor = ArchiveManager::GetArchiveDescriptor(archivePath, descriptor);
+#ifdef _WIN32
+    if (hasDescriptor) {
+        struct _stat64 st;
+        if (_fstat64(descriptor.Fd, &st) != 0) {
+            return false;
+        }
+        stamp.ModifiedTime = st.st_mtime;
+        stamp.Offset = descriptor.Offset;
+        stamp.Size = descriptor.Length >= 0 ? descriptor.Length : st.st_size - descriptor.Offset;
+        return true;
+    }
+
+    std::error_code error;
+    const auto size = std::filesystem::file_size(archivePath, error);
+    if (error) {
+        return false;
+    }
+    const auto modified = std::filesystem::last_write_time(archivePath, error);
+    if (error) {
+        return false;
+    }
+    stamp.Size = size;
+    stamp.Offset = 0;
+    stamp.ModifiedTime = modified.time_since_epoch().count();
+    return true;
+#else
+    // stat rather than std::filesystem, whose clock epoch differs between standard libraries, so the mtime is
+    // the one MainActivity reads for mk64.o2r (see ArchiveManager::RegisterArchiveIndex)
+    struct stat st;
+    if ((hasDescriptor ? fstat(descriptor.Fd, &st) : stat(archivePath.c_str(), &st)) != 0) {
+        return false;
+    }
+#ifdef __APPLE__
+    stamp.ModifiedTime = (int64_t)st.st_mtimespec.tv_sec * 1000000000 + st.st_mtimespec.tv_nsec;
+#else
+    stamp.ModifiedTime = (int64_t)st.st_mtim.tv_sec * 1000000000 + st.st_mtim.tv_nsec;
+#endif
+    stamp.Offset = hasDescriptor ? descriptor.Offset : 0;
+    stamp.Size = hasDescriptor && descriptor.Length >= 0 ? descriptor.Length : st.st_size - stamp.Offset;
+    return true;
+#endif
+}
+
+bool ArchiveIndexCache::Find(const std::string& archivePath, const ArchiveStamp& stamp, ArchiveIndexEntry& entry) {
+    auto it = mRecords.find(archivePath);
+    if (it == mRecords.end()) {
+        mMisses++;
+        return false;
+    }
+
+    const uint8_t* record = mData + it->second;
+    if (Read<uint64_t>(record + 8) != stamp.Size || Read<uint64_t>(record + 16) != stamp.Offset ||
+        Read<int64_t>(record + 24) != stamp.ModifiedTime) {
+        SPDLOG_INFO("Archive {} changed since it was indexed", archivePath);
+        mMisses++;
+        return false;
+    }
+
+    const uint64_t recordSize = Read<uint64_t>(record);
+    const uint32_t pathLength = Read<uint32_t>(record + 32);
+    const uint32_t fileCount = Read<uint32_t>(record + 36);
+    entry.GameVersion = Read<uint32_t>(record + 40);
+    entry.HasGameVersion = Read<uint32_t>(record + 44) != 0;
+    entry.Files = std::make_shared<std::unordered_map<uint64_t, std::string>>();
+    entry.Files->reserve(fileCount);
+
+    size_t cursor = kRecordHeaderSize + pathLength;
+    for (uint32_t i = 0; i < fileCount; i++) {
+        if (recordSize - cursor < 12 || Read<uint32_t>(record + cursor + 8) > recordSize - cursor - 12) {
+            SPDLOG_WARN("Archive index record for {} is corrupt", archivePath);
+            entry.Files = nullptr;
+            mRecords.erase(it);
+            mMisses++;
+            return false;
+        }
+        const uint32_t nameLength = Read<uint32_t>(record + cursor + 8);
+        entry.Files->emplace(Read<uint64_t>(record + cursor),
+                             std::string(reinterpret_cast<const char*>(record + cursor + 12), nameLength));
+        cursor += 12 + nameLength;
+    }
+
+    mUsed.insert(archivePath);
+    mHits++;
+    return true;
+}
+
+void ArchiveIndexCache::Put(const std::string& archivePath, const ArchiveStamp& stamp,
+                            std::shared_ptr<Archive> archive) {
+    const auto files = archive->ListFiles();
+    std::vector<uint8_t> record;
+    Write<uint64_t>(record, 0); // size, patched below
+    Write<uint64_t>(record, stamp.Size);
+    Write<uint64_t>(record, stamp.Offset);
+    Write<int64_t>(record, stamp.ModifiedTime);
+    Write<uint32_t>(record, (uint32_t)archivePath.size());
+    Write<uint32_t>(record, (uint32_t)files->size());
+    Write<uint32_t>(record, archive->GetGameVersion());
+    Write<uint32_t>(record, archive->HasGameVersion() ? 1 : 0);
+    record.insert(record.end(), archivePath.begin(), archivePath.end());
+    for (const auto& [hash, name] : *files) {
+        Write<uint64_t>(record, hash);
+        Write<uint32_t>(record, (uint32_t)name.size());
+        record.insert(record.end(), name.begin(), name.end());
+    }
+    const uint64_t recordSize = record.size();
+    memcpy(record.data(), &recordSize, sizeof(recordSize));
+
+    mFresh[archivePath] = std::move(record);
+    mUsed.insert(archivePath);
+}
+
+bool ArchiveIndexCache::Save() {
+    bool stale = !mFresh.empty();
+    for (const auto& [path, offset] : mRecords) {
+        stale |= !mUsed.contains(path);
+    }
+    SPDLOG_INFO("Archive index: {} archive(s) from cache, {} indexed", mHits, mMisses);
+    if (!stale) {
+        return true;
+    }
+
+    std::vector<uint8_t> out(kHeaderSize, 0);
+    memcpy(out.data(), kMagic, sizeof(kMagic));
+    memcpy(out.data() + 4, &kFormatVersion, sizeof(kFormatVersion));
+    uint32_t count = 0;
+    for (const auto& path : mUsed) {
+        if (auto fresh = mFresh.find(path); fresh != mFresh.end()) {
+            out.insert(out.end(), fresh->second.begin(), fresh->second.end());
+        } else if (auto old = mRecords.find(path); old != mRecords.end()) {
+            const uint8_t* record = mData + old->second;
+            out.insert(out.end(), record, record + Read<uint64_t>(record));
+        } else {
+            continue;
+        }
+        count++;
+    }
+    memcpy(out.data() + 8, &count, sizeof(count));
+
+    const std::string tmpPath = mIndexPath + ".tmp";
+    FILE* file = fopen(tmpPath.c_str(), "wb");
+    if (file == nullptr) {
+        SPDLOG_ERROR("Failed to write archive index {}", tmpPath);
+        return false;
+    }
+    bool written = fwrite(out.data(), 1, out.size(), file) == out.size() && fflush(file) == 0;
+#ifndef _WIN32
+    written = written && fsync(fileno(file)) == 0;
+#endif
+    fclose(file);
+
+    std::error_code error;
+    if (written) {
+        // The mapping stays valid; it keeps the replaced file alive until it is unmapped
+        std::filesystem::rename(tmpPath, mIndexPath, error);
+    }
+    if (!written || error) {
+        SPDLOG_ERROR("Failed to replace archive index {}", mIndexPath);
+        std::remove(tmpPath.c_str());
+        return false;
+    }
+    return true;
+}
+
+void ArchiveIndexCache::Map() {
+#ifdef _WIN32
+    FILE* file = fopen(mIndexPath.c_str(), "rb");
+    if (file == nullptr) {
+        return;
+    }
+    fseek(file, 0, SEEK_END);
+    const long size = ftell(file);
+    fseek(file, 0, SEEK_SET);
+    if (size > 0) {
+        mBuffer.resize(size);
+        if (fread(mBuffer.data(), 1, size, file) == (size_t)size) {
+            mData = mBuffer.data();
+            mSize = mBuffer.size();
+        }
+    }
+    fclose(file);
+#else
+    const int fd = open(mIndexPath.c_str(), O_RDONLY);
+    if (fd < 0) {
+        return;
+    }
+    struct stat st;
+    if (fstat(fd, &st) == 0 && st.st_size > 0) {
+        void* data = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+        if (data != MAP_FAILED) {
+            mData = static_cast<const uint8_t*>(data);
+            mSize = st.st_size;
+            mMapped = true;
+        }
+    }
+    close(fd); // the mapping holds its own reference
+#endif
+}
+
+void ArchiveIndexCache::Unmap() {
+#ifndef _WIN32
+    if (mMapped) {
+        munmap(const_cast<uint8_t*>(mData), mSize);
+    }
+#endif
+    mMapped = false;
+    mData = nullptr;
+    mSize = 0;
+    mBuffer.clear();
+}
+
+bool ArchiveIndexCache::ReadRecords() {
+    if (mSize < kHeaderSize || memcmp(mData, kMagic, sizeof(kMagic)) != 0 ||
+        Read<uint32_t>(mData + 4) != kFormatVersion) {
+        return false;
+    }
+
+    const uint32_t count = Read<uint32_t>(mData + 8);
+    size_t offset = kHeaderSize;
+    for (uint32_t i = 0; i < count; i++) {
+        if (mSize - offset < kRecordHeaderSize) {
+            return false;
+        }
+        const uint8_t* record = mData + offset;
+        const uint64_t recordSize = Read<uint64_t>(record);
+        const uint32_t pathLength = Read<uint32_t>(record + 32);
+        if (recordSize > mSize - offset || recordSize < kRecordHeaderSize + pathLength) {
+            return false;
+        }
+        // File entries are bounds-checked as they are decoded in Find()
+        mRecords[std::string(reinterpret_cast<const char*>(record + kRecordHeaderSize), pathLength)] = offset;
+        offset += recordSize;
+    }
+    return true;
+}
+} // namespace Ship
@@ -0,0 +1,59 @@
+#pragma once
+
+#include <string>
+#include <memory>
+#include <vector>
+#include <unordered_map>
+#include <unordered_set>
+#include <stdint.h>
+
+namespace Ship {
+class Archive;
+
+// Identifies one version of an archive file without reading it.
+struct ArchiveStamp {
+    uint64_t Size = 0;
+    uint64_t Offset = 0; // start of the archive within a descriptor-backed file
+    int64_t ModifiedTime = 0; // nanoseconds since the epoch (file clock ticks on Windows)
+};
+
+// What indexing an archive produces: its file list (hash to path) and game version.
+struct ArchiveIndexEntry {
+    bool HasGameVersion = false;
+    uint32_t GameVersion = 0;
+    std::shared_ptr<std::unordered_map<uint64_t, std::string>> Files;
+};
+
+// File lists of the mounted archives, persisted between launches so unchanged archives don't have their central
+// directories walked again. Records are keyed by archive path and only used while the file's size and
+// modification time still match. The index file is memory-mapped; a record is only decoded when its archive is
+// looked up. Save() rewrites it with just the archives used this session, so removed mods drop out.
+class ArchiveIndexCache {
+  public:
+    ArchiveIndexCache(const std::string& indexPath);
+    ~ArchiveIndexCache();
+
+    static bool GetStamp(const std::string& archivePath, ArchiveStamp& stamp);
+
+    bool Find(const std::string& archivePath, const ArchiveStamp& stamp, ArchiveIndexEntry& entry);
+    void Put(const std::string& archivePath, const ArchiveStamp& stamp, std::shared_ptr<Archive> archive);
+    bool Save();
+
+  private:
+    void Map();
+    void Unmap();
+    bool ReadRecords();
+
+    std::string mIndexPath;
+    const uint8_t* mData = nullptr;
+    size_t mSize = 0;
+    bool mMapped = false;
+    std::vector<uint8_t> mBuffer; // holds the index where it can't be mapped
+
+    std::unordered_map<std::string, size_t> mRecords;             // archive path to record offset in mData
+    std::unordered_map<std::string, std::vector<uint8_t>> mFresh; // records written this session
+    std::unordered_set<std::string> mUsed;
+    uint32_t mHits = 0;
+    uint32_t mMisses = 0;
+};
+} // namespace Ship
@@ -1,9 +1,13 @@
 #include "ArchiveManager.h"
 
+#include <algorithm>
 #include <filesystem>
 #include "spdlog/spdlog.h"
 
+#include "Context.h"
 #include "resource/archive/Archive.h"
+#include "resource/archive/ArchiveIndexCache.h"
+#include "resource/archive/EntryCache.h"
 #ifdef INCLUDE_MPQ_SUPPORT
 #include "resource/archive/OtrArchive.h"
 #endif
@@ -14,6 +18,17 @@
 #include "utils/StrHash64.h"
 
 namespace Ship {
+std::mutex ArchiveManager::sDescriptorMutex;
+std::unordered_map<std::string, ArchiveDescriptor> ArchiveManager::sDescriptors;
+static constexpr uint64_t kEntryCacheBudget = 64 * 1024 * 1024;
+
+struct PrebuiltIndex {
+    ArchiveStamp Stamp;
+    ArchiveIndexEntry Entry;
+};
+// Guarded by sDescriptorMutex
+static std::unordered_map<std::string, PrebuiltIndex> sPrebuiltIndexes;
+
 ArchiveManager::ArchiveManager() {
 }
 
@@ -24,10 +39,15 @@ void ArchiveManager::Init(const std::vector<std::string>& archivePaths) {
 void ArchiveManager::Init(const std::vector<std::string>& archivePaths,
                           const std::unordered_set<uint32_t>& validGameVersions) {
     mValidGameVersions = validGameVersions;
+    // Archives unchanged since the last launch take their file lists from here instead of their central directories
+    mIndexCache = std::make_shared<ArchiveIndexCache>(Context::GetPathRelativeToAppDirectory("archive_index.bin"));
+    mEntryCache =
+        std::make_shared<EntryCache>(Context::GetPathRelativeToAppDirectory("entry_cache.bin"), kEntryCacheBudget);
     auto archives = GetArchiveListInPaths(archivePaths);
     for (const auto& archive : archives) {
         AddArchive(archive);
     }
+    mIndexCache->Save();
 }
 
 ArchiveManager::~ArchiveManager() {
@@ -36,6 +56,7 @@ ArchiveManager::~ArchiveManager() {
 }
 
 bool ArchiveManager::IsLoaded() {
+    std::shared_lock lock(mFileIndexMutex);
     return !mArchives.empty();
 }
 
@@ -48,9 +69,23 @@ std::shared_ptr<File> ArchiveManager::LoadFile(const std::string& filePath) {
 }
 
 std::shared_ptr<File> ArchiveManager::LoadFile(uint64_t hash) {
-    auto archive = mFileToArchive[hash];
-    if (archive == nullptr) {
-        return nullptr;
+    // The reference keeps the archive open for this read even if it is remounted meanwhile
+    std::shared_ptr<Archive> archive;
+    {
+        std::shared_lock lock(mFileIndexMutex);
+        auto it = mFileToArchive.find(hash);
+        if (it == mFileToArchive.end()) {
+            return nullptr;
+        }
+        archive = it->second;
+    }
+
+    if (mLoadTraceActive) {
+        std::lock_guard<std::mutex> lock(mLoadTraceMutex);
+        if (mLoadTraced.insert(hash).second) {
+            const std::string* filePath = HashToString(hash);
+            mLoadTrace.emplace_back(archive->GetPath(), filePath != nullptr ? *filePath : "");
+        }
     }
 
     return archive->LoadFile(hash);
@@ -61,11 +96,14 @@ bool ArchiveManager::HasFile(const std::string& filePath) {
 }
 
 bool ArchiveManager::HasFile(uint64_t hash) {
+    std::shared_lock lock(mFileIndexMutex);
     return mFileToArchive.count(hash) > 0;
 }
 
 std::shared_ptr<Archive> ArchiveManager::GetArchiveFromFile(const std::string& filePath) {
-    return mFileToArchive[CRC64(filePath.c_str())];
+    std::shared_lock lock(mFileIndexMutex);
+    auto it = mFileToArchive.find(CRC64(filePath.c_str()));
+    return it != mFileToArchive.end() ? it->second : nullptr;
 }
 
 std::shared_ptr<std::vector<std::string>> ArchiveManager::ListFiles(const std::string& searchMask) {
@@ -79,7 +117,14 @@ std::shared_ptr<std::vector<std::string>> ArchiveManager::ListFiles(const std::s
 std::shared_ptr<std::vector<std::string>> ArchiveManager::ListFiles(const std::list<std::string>& includes,
                                                                     const std::list<std::string>& excludes) {
     auto list = std::make_shared<std::vector<std::string>>();
-    for (const auto& [hash, path] : mHashes) {
+    std::shared_lock lock(mFileIndexMutex);
+    // mHashes may still name files of unmounted archives, so list what is mounted
+    for (const auto& [hash, archive] : mFileToArchive) {
+        const auto name = mHashes.find(hash);
+        if (name == mHashes.end()) {
+            continue;
+        }
+        const std::string& path = name->second;
         if (includes.empty() && excludes.empty()) {
             list->push_back(path);
             continue;
@@ -111,6 +156,7 @@ std::shared_ptr<std::vector<std::string>> ArchiveManager::ListFiles(const std::l
 
 std::shared_ptr<std::vector<std::string>> ArchiveManager::ListDirectories(const std::string& searchMask) {
     auto list = std::make_shared<std::vector<std::string>>();
+    std::shared_lock lock(mFileIndexMutex);
     for (const std::string& dir : mDirectories) {
         if (glob_match(searchMask.c_str(), dir.c_str())) {
             list->push_back(dir);
@@ -120,15 +166,18 @@ std::shared_ptr<std::vector<std::string>> ArchiveManager::ListDirectories(const
 }
 
 std::vector<uint32_t> ArchiveManager::GetGameVersions() {
+    std::shared_lock lock(mFileIndexMutex);
     return mGameVersions;
 }
 
 void ArchiveManager::AddGameVersion(uint32_t newGameVersion) {
+    std::unique_lock lock(mFileIndexMutex);
     mGameVersions.push_back(newGameVersion);
 }
 
 std::shared_ptr<std::vector<std::shared_ptr<Archive>>> ArchiveManager::GetArchives() {
     auto archives = std::make_shared<std::vector<std::shared_ptr<Archive>>>();
+    std::shared_lock lock(mFileIndexMutex);
     for (const auto& archive : mArchives) {
         archives->push_back(archive);
     }
@@ -138,11 +187,14 @@ std::shared_ptr<std::vector<std::shared_ptr<Archive>>> ArchiveManager::GetArchiv
 void ArchiveManager::ResetVirtualFileSystem() {
     // Store the original list of archives because we will clear it and re-add them.
     // The re-add will trigger the file virtual file system to get populated.
-    auto archives = mArchives;
-    mArchives.clear();
-    mGameVersions.clear();
-    mHashes.clear();
-    mFileToArchive.clear();
+    std::vector<std::shared_ptr<Archive>> archives;
+    {
+        std::unique_lock lock(mFileIndexMutex);
+        archives.swap(mArchives);
+        mGameVersions.clear();
+        mHashes.clear();
+        mFileToArchive.clear();
+    }
     for (const auto& archive : archives) {
         archive->Unload();
         archive->Load();
@@ -155,6 +207,7 @@ bool ArchiveManager::WriteFile(std::shared_ptr<Archive> archive, const std::stri
     if (archive) {
         if (archive->WriteFile(filePath, data)) {
             auto hash = CRC64(filePath.c_str());
+            std::unique_lock lock(mFileIndexMutex);
             mHashes[hash] = filePath;
             mFileToArchive[hash] = archive;
             return true; // Successfully wrote file
@@ -164,16 +217,24 @@ bool ArchiveManager::WriteFile(std::shared_ptr<Archive> archive, const std::stri
 }
 
 size_t ArchiveManager::RemoveArchive(const std::string& path) {
-    for (size_t i = 0; i < mArchives.size(); i++) {
-        if (path == mArchives[i]->GetPath()) {
-            mArchives[i]->Unload();
-            mArchives.erase(mArchives.begin() + i);
-            ResetVirtualFileSystem();
-            return 1;
+    std::shared_ptr<Archive> removed = nullptr;
+    {
+        std::unique_lock lock(mFileIndexMutex);
+        for (size_t i = 0; i < mArchives.size(); i++) {
+            if (path == mArchives[i]->GetPath()) {
+                removed = mArchives[i];
+                mArchives.erase(mArchives.begin() + i);
+                break;
+            }
         }
     }
+    if (removed == nullptr) {
+        return 0;
+    }
 
-    return 0;
+    removed->Unload();
+    ResetVirtualFileSystem();
+    return 1;
 }
 
 size_t ArchiveManager::RemoveArchive(std::shared_ptr<Archive> archive) {
@@ -181,11 +242,14 @@ size_t ArchiveManager::RemoveArchive(std::shared_ptr<Archive> archive) {
 }
 
 void ArchiveManager::SetArchives(std::shared_ptr<std::vector<std::shared_ptr<Archive>>> archives) {
-    mArchives.clear();
+    {
+        std::unique_lock lock(mFileIndexMutex);
+        mArchives.clear();
 
-    if (archives) {
-        for (const auto& archive : *archives) {
-            mArchives.push_back(archive);
+        if (archives) {
+            for (const auto& archive : *archives) {
+                mArchives.push_back(archive);
+            }
         }
     }
 
@@ -193,6 +257,7 @@ void ArchiveManager::SetArchives(std::shared_ptr<std::vector<std::shared_ptr<Arc
 }
 
 const std::string* ArchiveManager::HashToString(uint64_t hash) const {
+    std::shared_lock lock(mFileIndexMutex);
     auto it = mHashes.find(hash);
     return it != mHashes.end() ? &it->second : nullptr;
 }
@@ -202,7 +267,9 @@ std::vector<std::string> ArchiveManager::GetArchiveListInPaths(const std::vector
 
     for (const auto& archivePath : archivePaths) {
         if (archivePath.length() > 0) {
-            if (std::filesystem::is_directory(archivePath)) {
+            if (HasArchiveDescriptor(archivePath)) {
+                fileList.push_back(archivePath);
+            } else if (std::filesystem::is_directory(archivePath)) {
                 for (const auto& p : std::filesystem::recursive_directory_iterator(archivePath)) {
                     if (StringHelper::IEquals(p.path().extension().string(), ".otr") ||
                         StringHelper::IEquals(p.path().extension().string(), ".zip") ||
@@ -225,13 +292,19 @@ std::vector<std::string> ArchiveManager::GetArchiveListInPaths(const std::vector
 }
 
 std::shared_ptr<Archive> ArchiveManager::AddArchive(const std::string& archivePath) {
+    return AddArchive(OpenArchive(archivePath));
+}
+
+std::shared_ptr<Archive> ArchiveManager::OpenArchive(const std::string& archivePath) {
     const std::filesystem::path path = archivePath;
     const std::string extension = path.extension().string();
     std::shared_ptr<Archive> archive = nullptr;
 
     SPDLOG_INFO("Reading archive: {}", path.string());
 
-    if (StringHelper::IEquals(extension, ".o2r") || StringHelper::IEquals(extension, ".zip")) {
+    if (ArchiveDescriptor descriptor; GetArchiveDescriptor(archivePath, descriptor)) {
+        archive = dynamic_pointer_cast<Archive>(std::make_shared<O2rArchive>(archivePath, descriptor));
+    } else if (StringHelper::IEquals(extension, ".o2r") || StringHelper::IEquals(extension, ".zip")) {
         archive = dynamic_pointer_cast<Archive>(std::make_shared<O2rArchive>(archivePath));
 #ifdef INCLUDE_MPQ_SUPPORT
     } else if (StringHelper::IEquals(extension, ".otr") || StringHelper::IEquals(extension, ".mpq")) {
@@ -245,8 +318,33 @@ std::shared_ptr<Archive> ArchiveManager::AddArchive(const std::string& archivePa
         archive = std::make_shared<O2rArchive>(archivePath);
     }
 
+    // Folder archives can change below the top directory without its timestamp moving, so only zips are cached
+    ArchiveStamp stamp;
+    auto o2rArchive = dynamic_pointer_cast<O2rArchive>(archive);
+    if (mIndexCache != nullptr && o2rArchive != nullptr && ArchiveIndexCache::GetStamp(archivePath, stamp)) {
+        if (mEntryCache != nullptr) {
+            // Set before loading so the version file is cached too; a new stamp means a new key
+            const uint64_t archiveKey = EntryCache::KeyOf(archivePath, stamp);
+            mEntryCache->RegisterArchive(archiveKey);
+            o2rArchive->SetEntryCache(mEntryCache, archiveKey);
+        }
+        if (ArchiveIndexEntry cached; mIndexCache->Find(archivePath, stamp, cached)) {
+            archive->Load(cached);
+        } else {
+            if (ArchiveIndexEntry prebuilt; TakeArchiveIndex(archivePath, stamp, prebuilt)) {
+                archive->Load(prebuilt);
+            } else {
+                archive->Load();
+            }
+            if (archive->IsLoaded()) {
+                mIndexCache->Put(archivePath, stamp, archive);
+            }
+        }
+        return archive;
+    }
+
     archive->Load();
-    return AddArchive(archive);
+    return archive;
 }
 
 std::shared_ptr<Archive> ArchiveManager::AddArchive(std::shared_ptr<Archive> archive) {
@@ -255,7 +353,7 @@ std::shared_ptr<Archive> ArchiveManager::AddArchive(std::shared_ptr<Archive> arc
         return nullptr;
     }
 
-    if (!mValidGameVersions.empty() && !mValidGameVersions.contains(archive->GetGameVersion())) {
+    if (!IsGameVersionValid(archive->GetGameVersion())) {
         SPDLOG_WARN("Attempting to add Archive at {} with invalid Game Version {} to Archive Manager",
                     archive->GetPath(), archive->GetGameVersion());
         return nullptr;
@@ -263,7 +361,14 @@ std::shared_ptr<Archive> ArchiveManager::AddArchive(std::shared_ptr<Archive> arc
 
     SPDLOG_INFO("Adding Archive {} to Archive Manager", archive->GetPath());
 
+    std::unique_lock lock(mFileIndexMutex);
     mArchives.push_back(archive);
+    IndexArchive(archive);
+    return archive;
+}
+
+// Callers hold mFileIndexMutex exclusively
+void ArchiveManager::IndexArchive(std::shared_ptr<Archive> archive) {
     if (archive->HasGameVersion()) {
         mGameVersions.push_back(archive->GetGameVersion());
     }
@@ -278,11 +383,175 @@ std::shared_ptr<Archive> ArchiveManager::AddArchive(std::shared_ptr<Archive> arc
             mDirectories.insert(dir);
         }
     }
-    return archive;
+}
+
+std::vector<std::string> ArchiveManager::RemountArchives(const std::vector<std::string>& archivePaths) {
+    std::unordered_set<std::string> affected;
+    const auto collect = [&affected](const std::shared_ptr<Archive>& archive) {
+        for (const auto& [hash, filename] : *archive->ListFiles()) {
+            affected.insert(filename);
+        }
+    };
+
+    // Opening reads the archives, so it happens before loader threads are locked out
+    std::vector<std::pair<std::string, std::shared_ptr<Archive>>> reopened;
+    for (const auto& path : archivePaths) {
+        std::shared_ptr<Archive> archive = nullptr;
+        if (std::filesystem::exists(path) || HasArchiveDescriptor(path)) {
+            archive = OpenArchive(path);
+            if (!archive->IsLoaded() || !IsGameVersionValid(archive->GetGameVersion())) {
+                SPDLOG_WARN("Could not remount archive {}", path);
+                archive = nullptr;
+            }
+        }
+        reopened.emplace_back(path, archive);
+    }
+
+    // Replaced archives are not unloaded here: a loader thread may be reading from one right now. Each closes
+    // when its last reference goes, whether that is this list or a read still in flight.
+    std::vector<std::shared_ptr<Archive>> retired;
+    {
+        std::unique_lock lock(mFileIndexMutex);
+        for (const auto& [path, archive] : reopened) {
+            auto it = std::find_if(mArchives.begin(), mArchives.end(), [&path](const std::shared_ptr<Archive>& a) {
+                return a->GetPath() == path;
+            });
+            if (it != mArchives.end()) {
+                collect(*it);
+                retired.push_back(*it);
+                if (archive != nullptr) {
+                    *it = archive; // keeps its place in the override order
+                } else {
+                    SPDLOG_INFO("Unmounted archive {}", path);
+                    mArchives.erase(it);
+                }
+            } else if (archive != nullptr) {
+                mArchives.push_back(archive);
+            }
+
+            if (archive != nullptr) {
+                SPDLOG_INFO("Remounted archive {}", path);
+                collect(archive);
+            }
+        }
+
+        // Re-index from the archives already in memory; unlike ResetVirtualFileSystem nothing else is reopened.
+        // mHashes keeps the names of files that went away, which a concurrent HashToString() caller may hold.
+        mGameVersions.clear();
+        mFileToArchive.clear();
+        mDirectories.clear();
+        for (const auto& archive : mArchives) {
+            IndexArchive(archive);
+        }
+    }
+    if (mIndexCache != nullptr) {
+        mIndexCache->Save();
+    }
+
+    return { affected.begin(), affected.end() };
+}
+
+void ArchiveManager::StartLoadTrace() {
+    std::lock_guard<std::mutex> lock(mLoadTraceMutex);
+    mLoadTrace.clear();
+    mLoadTraced.clear();
+    mLoadTraceActive = true;
+}
+
+std::vector<std::pair<std::string, std::string>> ArchiveManager::StopLoadTrace() {
+    std::lock_guard<std::mutex> lock(mLoadTraceMutex);
+    mLoadTraceActive = false;
+    mLoadTraced.clear();
+    return std::move(mLoadTrace);
+}
+
+EntryCacheStats ArchiveManager::GetEntryCacheStats() {
+    return mEntryCache != nullptr ? mEntryCache->GetStats() : EntryCacheStats{};
+}
+
+void ArchiveManager::FlushEntryCache() {
+    if (mEntryCache != nullptr) {
+        mEntryCache->Flush();
+    }
 }
 
 bool ArchiveManager::IsGameVersionValid(uint32_t gameVersion) {
     return mValidGameVersions.empty() || mValidGameVersions.contains(gameVersion);
 }
 
+void ArchiveManager::RegisterArchiveDescriptor(const std::string& archivePath, const ArchiveDescriptor& descriptor) {
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    SPDLOG_INFO("Archive {} is backed by fd {} (offset {}, length {})", archivePath, descriptor.Fd, descriptor.Offset,
+                descriptor.Length);
+    sDescriptors[archivePath] = descriptor;
+}
+
+bool ArchiveManager::GetArchiveDescriptor(const std::string& archivePath, ArchiveDescriptor& descriptor) {
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    auto it = sDescriptors.find(archivePath);
+    if (it == sDescriptors.end()) {
+        return false;
+    }
+    descriptor = it->second;
+    return true;
+}
+
+bool ArchiveManager::HasArchiveDescriptor(const std::string& archivePath) {
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    return sDescriptors.contains(archivePath);
+}
+
+void ArchiveManager::UnregisterArchiveDescriptor(const std::string& archivePath) {
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    sDescriptors.erase(archivePath);
+    sPrebuiltIndexes.erase(archivePath);
+}
+
+void ArchiveManager::RegisterArchiveIndex(const std::string& archivePath, uint64_t archiveSize,
+                                          int64_t modifiedTime, const std::vector<std::string>& fileNames,
+                                          bool hasGameVersion, uint32_t gameVersion) {
+    // Archives without a version file keep the 0xFFFFFFFF an Archive starts out with
+    PrebuiltIndex prebuilt = { { archiveSize, 0, modifiedTime },
+                               { hasGameVersion, hasGameVersion ? gameVersion : 0xFFFFFFFF } };
+    prebuilt.Entry.Files = std::make_shared<std::unordered_map<uint64_t, std::string>>();
+    prebuilt.Entry.Files->reserve(fileNames.size());
+    for (const auto& name : fileNames) {
+        // Same rules as O2rArchive::Open() and Archive::IndexFile()
+        if (name.empty() || name.back() == '/') {
+            continue;
+        }
+        const bool isMeta = name.length() > 5 && name.compare(name.length() - 5, 5, ".meta") == 0;
+        const std::string path = isMeta ? name.substr(0, name.length() - 5) : name;
+        (*prebuilt.Entry.Files)[CRC64(path.c_str())] = path;
+    }
+
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    SPDLOG_INFO("Archive {} comes with a prebuilt index of {} files", archivePath, prebuilt.Entry.Files->size());
+    sPrebuiltIndexes[archivePath] = std::move(prebuilt);
+}
+
+bool ArchiveManager::TakeArchiveIndex(const std::string& archivePath, const ArchiveStamp& stamp,
+                                      ArchiveIndexEntry& entry) {
+    std::lock_guard<std::mutex> lock(sDescriptorMutex);
+    auto it = sPrebuiltIndexes.find(archivePath);
+    if (it == sPrebuiltIndexes.end()) {
+        return false;
+    }
+    // The index is saved under the stamp, so anything short of the exact file that was checked is reindexed
+    const ArchiveStamp& checked = it->second.Stamp;
+    const bool current =
+        checked.Size == stamp.Size && checked.Offset == stamp.Offset && checked.ModifiedTime == stamp.ModifiedTime;
+    if (current) {
+        entry = std::move(it->second.Entry);
+    } else {
+        SPDLOG_WARN("Archive {} changed since its prebuilt index was made", archivePath);
+    }
+    sPrebuiltIndexes.erase(it);
+    return current;
+}
+
+bool ArchiveManager::MergeArchives(const std::vector<std::string>& inputPaths, const std::string& outputPath) {
+    return O2rArchive::Merge(inputPaths, outputPath);
+}
+
 } // namespace Ship
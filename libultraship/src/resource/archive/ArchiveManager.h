@@ -6,12 +6,28 @@
 #include <list>
 #include <unordered_map>
 #include <unordered_set>
+#include <mutex>
+#include <shared_mutex>
+#include <atomic>
+#include <utility>
 #include <stdint.h>
 #include "resource/File.h"
 
 namespace Ship {
 struct File;
 class Archive;
+class ArchiveIndexCache;
+class EntryCache;
+struct EntryCacheStats;
+struct ArchiveIndexEntry;
+struct ArchiveStamp;
+
+// An already open file (or a byte range of one) that backs an archive path, e.g. an Android SAF document.
+struct ArchiveDescriptor {
+    int Fd = -1;
+    int64_t Offset = 0;
+    int64_t Length = -1; // -1 reads to the end of the file
+};
 
 class ArchiveManager {
   public:
@@ -26,6 +42,19 @@ class ArchiveManager {
     void SetArchives(std::shared_ptr<std::vector<std::shared_ptr<Archive>>> archives);
     size_t RemoveArchive(std::shared_ptr<Archive> archive);
     size_t RemoveArchive(const std::string& path);
+    // Reopens the archives at the given paths in place, mounts new ones after the rest and drops the ones whose
+    // file is gone. Other archives stay open; only the file index is rebuilt. Safe while other threads load files:
+    // a replaced archive is closed once the last read holding it finishes. Returns the resource paths whose
+    // contents may have changed.
+    std::vector<std::string> RemountArchives(const std::vector<std::string>& archivePaths);
+    // Records the (archive path, file path) of each distinct file LoadFile() serves until StopLoadTrace(), in
+    // the order they were first loaded. Used to learn what the boot sequence reads.
+    void StartLoadTrace();
+    std::vector<std::pair<std::string, std::string>> StopLoadTrace();
+    // Inflated entries cached on disk between launches, see EntryCache. Flushing schedules making the entries added
+    // so far survive a kill, and compacting the cache once it is full, on the cache's own thread.
+    EntryCacheStats GetEntryCacheStats();
+    void FlushEntryCache();
 
     bool IsLoaded();
     std::shared_ptr<File> LoadFile(const std::string& filePath);
@@ -43,17 +72,47 @@ class ArchiveManager {
     const std::string* HashToString(uint64_t hash) const;
     bool IsGameVersionValid(uint32_t gameVersion);
 
+    // The descriptor is dup'd when the archive is opened, the caller keeps ownership of fd.
+    static void RegisterArchiveDescriptor(const std::string& archivePath, const ArchiveDescriptor& descriptor);
+    static bool GetArchiveDescriptor(const std::string& archivePath, ArchiveDescriptor& descriptor);
+    static bool HasArchiveDescriptor(const std::string& archivePath);
+    static void UnregisterArchiveDescriptor(const std::string& archivePath);
+    // A file list read from the archive's central directory by someone else (MainActivity checks mk64.o2r before
+    // the engine starts). The next open of archivePath uses it instead of indexing the archive, as long as the
+    // archive is still archiveSize bytes and was last modified at modifiedTime (nanoseconds, from fstat).
+    static void RegisterArchiveIndex(const std::string& archivePath, uint64_t archiveSize, int64_t modifiedTime,
+                                     const std::vector<std::string>& fileNames, bool hasGameVersion,
+                                     uint32_t gameVersion);
+    // Combines several archives into one at outputPath; later inputs win. See O2rArchive::Merge.
+    static bool MergeArchives(const std::vector<std::string>& inputPaths, const std::string& outputPath);
+
   protected:
     static std::vector<std::string> GetArchiveListInPaths(const std::vector<std::string>& archivePaths);
     void AddGameVersion(uint32_t newGameVersion);
     void ResetVirtualFileSystem();
+    std::shared_ptr<Archive> OpenArchive(const std::string& archivePath);
+    void IndexArchive(std::shared_ptr<Archive> archive);
+    static bool TakeArchiveIndex(const std::string& archivePath, const ArchiveStamp& stamp, ArchiveIndexEntry& entry);
 
   private:
+    // Guards the archive list and the file index below, which RemountArchives() rebuilds on the game thread
+    // while resource loader threads read them. mHashes is only ever added to outside ResetVirtualFileSystem(),
+    // so the names HashToString() hands out stay valid.
+    mutable std::shared_mutex mFileIndexMutex;
     std::vector<std::shared_ptr<Archive>> mArchives;
     std::vector<uint32_t> mGameVersions;
     std::unordered_set<uint32_t> mValidGameVersions;
     std::unordered_map<uint64_t, std::string> mHashes;
     std::unordered_set<std::string> mDirectories;
     std::unordered_map<uint64_t, std::shared_ptr<Archive>> mFileToArchive;
+    std::shared_ptr<ArchiveIndexCache> mIndexCache;
+    std::shared_ptr<EntryCache> mEntryCache;
+    std::atomic<bool> mLoadTraceActive = false;
+    std::mutex mLoadTraceMutex;
+    std::vector<std::pair<std::string, std::string>> mLoadTrace;
+    std::unordered_set<uint64_t> mLoadTraced;
+
+    static std::mutex sDescriptorMutex;
+    static std::unordered_map<std::string, ArchiveDescriptor> sDescriptors;
 };
 } // namespace Ship
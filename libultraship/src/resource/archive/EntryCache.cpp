@@ -0,0 +1,442 @@
+#include "EntryCache.h"
+
+#include <algorithm>
+#include <cstdio>
+#include <cstring>
+#include <mutex>
+#ifndef _WIN32
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
+#include "spdlog/spdlog.h"
+
+#include "resource/archive/ArchiveIndexCache.h"
+#include "utils/StrHash64.h"
+
+namespace Ship {
+// Layout, native byte order: a header (magic, u32 version, u64 committed length), then records of
+//   u64 archive key, u64 hash, u32 size, u32 loads, u64 checksum (CRC64 of the data), the data padded to 8 bytes.
+// Records before the committed length were synced before it was written and are trusted as they are.
+static constexpr char kMagic[4] = { 'L', 'U', 'S', 'C' };
+static constexpr uint32_t kFormatVersion = 1;
+static constexpr uint64_t kHeaderSize = 16;
+static constexpr uint64_t kRecordHeaderSize = 32;
+static constexpr uint64_t kLoadsOffset = 20;
+// Appends are synced and committed every this many bytes, which bounds what a crash can cost
+static constexpr uint64_t kCommitInterval = 8 * 1024 * 1024;
+// Bigger entries would crowd out many small ones
+static constexpr uint64_t kMaxEntryShare = 8;
+// Compaction keeps this share of the budget so the file doesn't fill up again right away
+static constexpr uint64_t kCompactPercent = 75;
+
+template <typename T> static T Read(const uint8_t* data) {
+    T value;
+    memcpy(&value, data, sizeof(T));
+    return value;
+}
+
+template <typename T> static void Write(std::vector<uint8_t>& out, T value) {
+    const auto* bytes = reinterpret_cast<const uint8_t*>(&value);
+    out.insert(out.end(), bytes, bytes + sizeof(T));
+}
+
+static uint64_t RecordSize(uint32_t size) {
+    return kRecordHeaderSize + ((size + 7ull) & ~7ull);
+}
+
+// Both keys go into the lookup key; Get() compares them in full, so a collision only costs a miss
+static uint64_t SlotOf(uint64_t archiveKey, uint64_t hash) {
+    return archiveKey * 0x9E3779B97F4A7C15ull ^ hash;
+}
+
+static std::vector<uint8_t> Header(uint64_t committed) {
+    std::vector<uint8_t> header(kMagic, kMagic + sizeof(kMagic));
+    Write<uint32_t>(header, kFormatVersion);
+    Write<uint64_t>(header, committed);
+    return header;
+}
+
+#ifndef _WIN32
+static bool WriteAll(int fd, const void* data, size_t size, uint64_t offset) {
+    const auto* bytes = static_cast<const uint8_t*>(data);
+    while (size > 0) {
+        const ssize_t written = pwrite(fd, bytes, size, offset);
+        if (written <= 0) {
+            return false;
+        }
+        bytes += written;
+        size -= written;
+        offset += written;
+    }
+    return true;
+}
+
+static bool Sync(int fd) {
+#ifdef __APPLE__
+    return fsync(fd) == 0;
+#else
+    return fdatasync(fd) == 0;
+#endif
+}
+#endif
+
+EntryCache::EntryCache(const std::string& path, uint64_t budgetBytes) : mPath(path), mBudget(budgetBytes) {
+    Open();
+    if (mFd >= 0) {
+        mWorker = std::thread(&EntryCache::RunWorker, this);
+    }
+}
+
+EntryCache::~EntryCache() {
+    if (mWorker.joinable()) {
+        // The worker finishes what is pending, including this last commit, before it exits
+        Flush();
+        {
+            std::lock_guard<std::mutex> lock(mWorkMutex);
+            mStopping = true;
+        }
+        mWorkCondition.notify_one();
+        mWorker.join();
+    }
+    Close();
+}
+
+uint64_t EntryCache::KeyOf(const std::string& archivePath, const ArchiveStamp& stamp) {
+    uint64_t key = update_crc64(archivePath.data(), archivePath.size(), 0);
+    key = update_crc64(&stamp.Size, sizeof(stamp.Size), key);
+    key = update_crc64(&stamp.Offset, sizeof(stamp.Offset), key);
+    return update_crc64(&stamp.ModifiedTime, sizeof(stamp.ModifiedTime), key);
+}
+
+void EntryCache::Open() {
+#ifndef _WIN32
+    mFd = open(mPath.c_str(), O_RDWR | O_CREAT | O_CLOEXEC, 0644);
+    if (mFd < 0) {
+        SPDLOG_WARN("Could not open entry cache {}", mPath);
+        return;
+    }
+
+    struct stat st;
+    const uint64_t size = fstat(mFd, &st) == 0 ? st.st_size : 0;
+    if (size >= kHeaderSize) {
+        void* map = mmap(nullptr, size, PROT_READ, MAP_SHARED, mFd, 0);
+        if (map != MAP_FAILED) {
+            mMap = static_cast<const uint8_t*>(map);
+            mMapLength = size;
+            mMapSize = size;
+        }
+    }
+
+    uint64_t offset = kHeaderSize;
+    if (mMap != nullptr && memcmp(mMap, kMagic, sizeof(kMagic)) == 0 &&
+        Read<uint32_t>(mMap + 4) == kFormatVersion) {
+        const uint64_t committed = Read<uint64_t>(mMap + 8);
+        while (offset + kRecordHeaderSize <= mMapSize) {
+            const uint8_t* record = mMap + offset;
+            const uint32_t dataSize = Read<uint32_t>(record + 16);
+            const uint64_t end = offset + RecordSize(dataSize);
+            if (end > mMapSize) {
+                break;
+            }
+            // Only the records appended since the last commit can be torn
+            if (offset >= committed && crc64(record + kRecordHeaderSize, dataSize) != Read<uint64_t>(record + 24)) {
+                break;
+            }
+
+            Entry& entry = mEntries[SlotOf(Read<uint64_t>(record), Read<uint64_t>(record + 8))];
+            entry.ArchiveKey = Read<uint64_t>(record);
+            entry.Hash = Read<uint64_t>(record + 8);
+            entry.Offset = offset;
+            entry.Size = dataSize;
+            entry.StoredLoads = Read<uint32_t>(record + kLoadsOffset);
+            entry.Loads = entry.StoredLoads;
+            offset = end;
+        }
+    } else if (size > 0) {
+        SPDLOG_WARN("Discarding unreadable entry cache {}", mPath);
+    }
+
+    // Drops a torn tail (or an unreadable file) and trusts everything that checked out
+    mEnd = offset;
+    if (mEnd != size && ftruncate(mFd, mEnd) != 0) {
+        SPDLOG_WARN("Could not truncate entry cache {}", mPath);
+    }
+    mMapSize = std::min(mMapSize, mEnd);
+    const auto header = Header(mEnd);
+    WriteAll(mFd, header.data(), header.size(), 0);
+    mFull = mEnd >= mBudget;
+
+    SPDLOG_INFO("Entry cache: {} entries, {} KB", mEntries.size(), mEnd / 1024);
+#endif
+}
+
+void EntryCache::Close() {
+#ifndef _WIN32
+    if (mMap != nullptr) {
+        munmap(const_cast<uint8_t*>(mMap), mMapLength);
+        mMap = nullptr;
+    }
+    if (mFd >= 0) {
+        close(mFd);
+        mFd = -1;
+    }
+#endif
+    mMapLength = 0;
+    mMapSize = 0;
+    mEnd = 0;
+    mUncommitted = 0;
+    mEntries.clear();
+}
+
+void EntryCache::RegisterArchive(uint64_t archiveKey) {
+    std::unique_lock lock(mMutex);
+    mLiveArchives.insert(archiveKey);
+}
+
+bool EntryCache::ReadData(const Entry& entry, char* out) {
+    const uint64_t dataOffset = entry.Offset + kRecordHeaderSize;
+    if (dataOffset + entry.Size <= mMapSize) {
+        memcpy(out, mMap + dataOffset, entry.Size);
+        return true;
+    }
+#ifndef _WIN32
+    // Added this session, past the end of the mapping
+    uint64_t done = 0;
+    while (done < entry.Size) {
+        const ssize_t n = pread(mFd, out + done, entry.Size - done, dataOffset + done);
+        if (n <= 0) {
+            return false;
+        }
+        done += n;
+    }
+    return true;
+#else
+    return false;
+#endif
+}
+
+std::shared_ptr<std::vector<char>> EntryCache::Get(uint64_t archiveKey, uint64_t hash) {
+    std::shared_lock lock(mMutex);
+    const auto it = mEntries.find(SlotOf(archiveKey, hash));
+    if (it == mEntries.end() || it->second.ArchiveKey != archiveKey || it->second.Hash != hash) {
+        mMisses++;
+        return nullptr;
+    }
+
+    auto buffer = std::make_shared<std::vector<char>>(it->second.Size);
+    if (!ReadData(it->second, buffer->data())) {
+        mMisses++;
+        return nullptr;
+    }
+    it->second.Loads++;
+    mHits++;
+    mBytesServed += it->second.Size;
+    return buffer;
+}
+
+void EntryCache::Put(uint64_t archiveKey, uint64_t hash, const std::vector<char>& data) {
+#ifndef _WIN32
+    const uint64_t recordSize = RecordSize(data.size());
+    // Checked before locking too: a compaction holds the lock shared while it copies the file
+    if (recordSize > mBudget / kMaxEntryShare || mFull) {
+        return;
+    }
+    std::unique_lock lock(mMutex);
+    if (mFd < 0 || mEntries.count(SlotOf(archiveKey, hash)) > 0) {
+        return;
+    }
+    if (mFull || mEnd + recordSize > mBudget) {
+        mFull = true;
+        return;
+    }
+
+    std::vector<uint8_t> record;
+    record.reserve(recordSize);
+    Write<uint64_t>(record, archiveKey);
+    Write<uint64_t>(record, hash);
+    Write<uint32_t>(record, data.size());
+    Write<uint32_t>(record, 1);
+    Write<uint64_t>(record, crc64(data.data(), data.size()));
+    record.insert(record.end(), data.begin(), data.end());
+    record.resize(recordSize);
+    if (!WriteAll(mFd, record.data(), record.size(), mEnd)) {
+        // Whatever made it to disk is past the committed length and fails its checksum on the next open
+        SPDLOG_WARN("Could not append to entry cache {}", mPath);
+        mFull = true;
+        return;
+    }
+
+    Entry& entry = mEntries[SlotOf(archiveKey, hash)];
+    entry.ArchiveKey = archiveKey;
+    entry.Hash = hash;
+    entry.Offset = mEnd;
+    entry.Size = data.size();
+    entry.StoredLoads = 1;
+    entry.Loads = 1;
+    mEnd += recordSize;
+    mUncommitted += recordSize;
+    if (mUncommitted >= kCommitInterval) {
+        mUncommitted = 0;
+        Schedule(false);
+    }
+#endif
+}
+
+void EntryCache::Schedule(bool compact) {
+    {
+        std::lock_guard<std::mutex> lock(mWorkMutex);
+        mCommitPending = true;
+        mCompactPending = mCompactPending || compact;
+    }
+    mWorkCondition.notify_one();
+}
+
+void EntryCache::RunWorker() {
+    std::unique_lock<std::mutex> lock(mWorkMutex);
+    while (true) {
+        mWorkCondition.wait(lock, [this] { return mCommitPending || mCompactPending || mStopping; });
+        const bool commit = mCommitPending;
+        const bool compact = mCompactPending;
+        if (!commit && !compact) {
+            return; // stopping with nothing left to do
+        }
+        mCommitPending = false;
+        mCompactPending = false;
+
+        lock.unlock();
+        if (commit) {
+            Commit();
+        }
+        if (compact) {
+            Compact();
+        }
+        lock.lock();
+    }
+}
+
+// Runs on the worker. Records up to the snapshot of mEnd are completely written, since Put() only moves mEnd
+// past a record once it is, so they can be synced without keeping Put() and Get() waiting.
+void EntryCache::Commit() {
+#ifndef _WIN32
+    uint64_t end;
+    {
+        // Shared is enough: Put() is the only other writer of entries and needs the lock exclusively, and only
+        // the worker touches StoredLoads once an entry exists
+        std::shared_lock lock(mMutex);
+        if (mFd < 0) {
+            return;
+        }
+        end = mEnd;
+        for (auto& [slot, entry] : mEntries) {
+            const uint32_t loads = entry.Loads;
+            if (loads != entry.StoredLoads) {
+                WriteAll(mFd, &loads, sizeof(loads), entry.Offset + kLoadsOffset);
+                entry.StoredLoads = loads;
+            }
+        }
+    }
+
+    // Records first, so the committed length in the header never covers data that isn't on disk
+    bool synced = Sync(mFd);
+    if (synced) {
+        const auto header = Header(end);
+        synced = WriteAll(mFd, header.data(), header.size(), 0) && Sync(mFd);
+    }
+    if (!synced) {
+        SPDLOG_WARN("Could not sync entry cache {}", mPath);
+    }
+#endif
+}
+
+void EntryCache::Flush() {
+    Schedule(mFull);
+
+    const auto stats = GetStats();
+    SPDLOG_INFO("Entry cache: {} hits, {} misses, {} KB served from cache, {} entries, {} KB", stats.Hits,
+                stats.Misses, stats.BytesServed / 1024, stats.Entries, stats.Bytes / 1024);
+}
+
+// Runs on the worker. The new file is written and synced under the shared lock, so lookups carry on from the old
+// one meanwhile and Put() returns early because the cache is full; only switching files takes the lock exclusively.
+void EntryCache::Compact() {
+#ifndef _WIN32
+    std::shared_lock lock(mMutex);
+    if (mFd < 0 || !mFull) {
+        return;
+    }
+
+    // Most loaded first, among the archives still mounted; entries of changed or removed archives go
+    // The counts are snapshotted since lookups keep bumping them meanwhile
+    std::vector<std::pair<uint32_t, const Entry*>> keep;
+    for (const auto& [slot, entry] : mEntries) {
+        if (mLiveArchives.count(entry.ArchiveKey) > 0) {
+            keep.emplace_back(entry.Loads, &entry);
+        }
+    }
+    std::sort(keep.begin(), keep.end(), [](const auto& a, const auto& b) { return a.first > b.first; });
+
+    const std::string tmpPath = mPath + ".tmp";
+    FILE* file = fopen(tmpPath.c_str(), "wb");
+    if (file == nullptr) {
+        SPDLOG_WARN("Could not write entry cache {}", tmpPath);
+        return;
+    }
+
+    const uint64_t target = mBudget * kCompactPercent / 100;
+    uint64_t size = kHeaderSize;
+    size_t kept = 0;
+    auto header = Header(0);
+    bool written = fwrite(header.data(), 1, header.size(), file) == header.size();
+    std::vector<char> data;
+    for (const auto& [loads, entry] : keep) {
+        const uint64_t recordSize = RecordSize(entry->Size);
+        if (size + recordSize > target) {
+            continue; // a smaller entry further down may still fit
+        }
+        data.resize(entry->Size);
+        if (!ReadData(*entry, data.data())) {
+            continue;
+        }
+
+        std::vector<uint8_t> record;
+        record.reserve(recordSize);
+        Write<uint64_t>(record, entry->ArchiveKey);
+        Write<uint64_t>(record, entry->Hash);
+        Write<uint32_t>(record, entry->Size);
+        Write<uint32_t>(record, loads);
+        Write<uint64_t>(record, crc64(data.data(), data.size()));
+        record.insert(record.end(), data.begin(), data.end());
+        record.resize(recordSize);
+        written = written && fwrite(record.data(), 1, record.size(), file) == record.size();
+        size += recordSize;
+        kept++;
+    }
+
+    // Everything was checksummed above, so the whole file is committed
+    header = Header(size);
+    written = written && fseek(file, 0, SEEK_SET) == 0 && fwrite(header.data(), 1, header.size(), file) == header.size();
+    written = written && fflush(file) == 0;
+    written = written && fsync(fileno(file)) == 0;
+    written = fclose(file) == 0 && written;
+    if (!written || rename(tmpPath.c_str(), mPath.c_str()) != 0) {
+        SPDLOG_WARN("Could not replace entry cache {}", mPath);
+        std::remove(tmpPath.c_str());
+        return;
+    }
+
+    SPDLOG_INFO("Compacted entry cache from {} to {} entries", mEntries.size(), kept);
+    lock.unlock();
+
+    std::unique_lock exclusive(mMutex);
+    Close();
+    Open();
+#endif
+}
+
+EntryCacheStats EntryCache::GetStats() {
+    std::shared_lock lock(mMutex);
+    return EntryCacheStats{ mHits, mMisses, mBytesServed, mEntries.size(), mEnd };
+}
+} // namespace Ship
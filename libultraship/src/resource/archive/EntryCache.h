@@ -0,0 +1,95 @@
+#pragma once
+
+#include <string>
+#include <memory>
+#include <vector>
+#include <atomic>
+#include <condition_variable>
+#include <mutex>
+#include <shared_mutex>
+#include <thread>
+#include <unordered_map>
+#include <unordered_set>
+#include <stdint.h>
+
+namespace Ship {
+struct ArchiveStamp;
+
+struct EntryCacheStats {
+    uint64_t Hits = 0;
+    uint64_t Misses = 0;
+    uint64_t BytesServed = 0; // inflated bytes served from the cache instead of the archive
+    uint64_t Entries = 0;
+    uint64_t Bytes = 0; // size of the cache file
+};
+
+// On-disk cache of inflated archive entries, so frequently loaded resources skip decompression on later launches.
+//
+// Entries are keyed by an archive key (path, size, offset and mtime of the archive, see KeyOf) and the file hash,
+// so a changed archive simply stops matching. They live in one append-only file that is memory-mapped at startup;
+// entries added this session are read back with pread until the next launch maps them. Records appended since
+// the last commit carry a checksum that is checked on open, so a crash mid-append only loses the torn tail.
+// Each entry counts how often it was loaded. Once the file reaches its budget nothing more is added until
+// Flush() compacts it down to the most loaded entries of the archives mounted this session.
+// Commits and compaction run on a background thread, and their syncs happen without holding the lock Get() and
+// Put() take exclusively, so neither the game thread nor the resource loaders wait on the disk.
+// Not available on Windows, where every lookup misses.
+class EntryCache {
+  public:
+    EntryCache(const std::string& path, uint64_t budgetBytes);
+    ~EntryCache();
+
+    static uint64_t KeyOf(const std::string& archivePath, const ArchiveStamp& stamp);
+
+    // Marks an archive as mounted; compaction drops entries of archives that aren't.
+    void RegisterArchive(uint64_t archiveKey);
+    std::shared_ptr<std::vector<char>> Get(uint64_t archiveKey, uint64_t hash);
+    void Put(uint64_t archiveKey, uint64_t hash, const std::vector<char>& data);
+    // Schedules making everything added so far durable, and compacting the file if it is full. Doesn't wait.
+    void Flush();
+    EntryCacheStats GetStats();
+
+  private:
+    struct Entry {
+        uint64_t ArchiveKey = 0;
+        uint64_t Hash = 0;
+        uint64_t Offset = 0; // of the record header
+        uint32_t Size = 0;
+        uint32_t StoredLoads = 0;
+        std::atomic<uint32_t> Loads = 0;
+    };
+
+    void Open();
+    void Close();
+    void Schedule(bool compact);
+    void RunWorker();
+    void Commit();
+    void Compact();
+    bool ReadData(const Entry& entry, char* out);
+
+    std::string mPath;
+    uint64_t mBudget;
+    int mFd = -1;
+    const uint8_t* mMap = nullptr;
+    uint64_t mMapLength = 0;
+    uint64_t mMapSize = 0; // how much of the mapping holds records
+    uint64_t mEnd = 0;
+    uint64_t mUncommitted = 0;
+    std::atomic<bool> mFull = false;
+
+    std::shared_mutex mMutex;
+    std::unordered_map<uint64_t, Entry> mEntries;
+    std::unordered_set<uint64_t> mLiveArchives;
+    std::atomic<uint64_t> mHits = 0;
+    std::atomic<uint64_t> mMisses = 0;
+    std::atomic<uint64_t> mBytesServed = 0;
+
+    // The worker is the only thread that commits, compacts or reopens the file
+    std::thread mWorker;
+    std::mutex mWorkMutex;
+    std::condition_variable mWorkCondition;
+    bool mCommitPending = false;
+    bool mCompactPending = false;
+    bool mStopping = false;
+};
+} // namespace Ship
@@ -1,16 +1,52 @@
 #include "O2rArchive.h"
 
+#include <cstdio>
+#include <cstring>
+#include <filesystem>
+#include <map>
+#ifdef _WIN32
+#include <io.h>
+#else
+#include <fcntl.h>
+#include <unistd.h>
+#endif
+
 #include "Context.h"
+#include "resource/archive/EntryCache.h"
+#include "utils/StrHash64.h"
 #include "window/Window.h"
 #include "spdlog/spdlog.h"
 
 namespace Ship {
+static FILE* DuplicateDescriptor(int fd) {
+#ifdef _WIN32
+    int copy = _dup(fd);
+    FILE* file = copy >= 0 ? _fdopen(copy, "rb") : nullptr;
+    if (file == nullptr && copy >= 0) {
+        _close(copy);
+    }
+#else
+    int copy = dup(fd);
+    FILE* file = copy >= 0 ? fdopen(copy, "rb") : nullptr;
+    if (file == nullptr && copy >= 0) {
+        close(copy);
+    }
+#endif
+    return file;
+}
+
 O2rArchive::O2rArchive(const std::string& archivePath) : Archive(archivePath) {
 }
 
+O2rArchive::O2rArchive(const std::string& archivePath, const ArchiveDescriptor& descriptor)
+    : Archive(archivePath), mHasDescriptor(true), mDescriptor(descriptor) {
+}
+
 O2rArchive::~O2rArchive() {
     SPDLOG_TRACE("destruct o2rarchive: {}", GetPath());
-    Close();
+    if (mZipArchive != nullptr) {
+        Close();
+    }
 }
 
 std::shared_ptr<File> O2rArchive::LoadFile(uint64_t hash) {
@@ -20,6 +56,20 @@ std::shared_ptr<File> O2rArchive::LoadFile(uint64_t hash) {
 }
 
 std::shared_ptr<File> O2rArchive::LoadFile(const std::string& filePath) {
+    // A hit needs neither inflating nor, for a lazily opened archive, the zip itself
+    const uint64_t hash = CRC64(filePath.c_str());
+    if (mEntryCache != nullptr) {
+        if (auto buffer = mEntryCache->Get(mEntryCacheKey, hash)) {
+            auto fileToLoad = std::make_shared<File>();
+            fileToLoad->Buffer = buffer;
+            fileToLoad->IsLoaded = true;
+            return fileToLoad;
+        }
+    }
+
+    if (mDeferOpen) {
+        std::call_once(mDeferredOpen, [this]() { OpenZip(); });
+    }
     if (mZipArchive == nullptr) {
         SPDLOG_TRACE("Failed to open file {} from zip archive {}. Archive not open.", filePath, GetPath());
         return nullptr;
@@ -53,7 +103,8 @@ std::shared_ptr<File> O2rArchive::LoadFile(const std::string& filePath) {
     auto fileToLoad = std::make_shared<File>();
     fileToLoad->Buffer = std::make_shared<std::vector<char>>(zipEntryStat.size);
 
-    if (zip_fread(zipEntryFile, fileToLoad->Buffer->data(), zipEntryStat.size) < 0) {
+    const bool read = zip_fread(zipEntryFile, fileToLoad->Buffer->data(), zipEntryStat.size) >= 0;
+    if (!read) {
         SPDLOG_TRACE("Error reading file {} in zip archive  {}.", filePath, GetPath());
     }
 
@@ -63,13 +114,22 @@ std::shared_ptr<File> O2rArchive::LoadFile(const std::string& filePath) {
 
     fileToLoad->IsLoaded = true;
 
+    // Stored entries are read as fast from the archive as from the cache
+    if (mEntryCache != nullptr && read && (zipEntryStat.valid & ZIP_STAT_COMP_METHOD) &&
+        zipEntryStat.comp_method != ZIP_CM_STORE) {
+        mEntryCache->Put(mEntryCacheKey, hash, *fileToLoad->Buffer);
+    }
+
     return fileToLoad;
 }
 
+void O2rArchive::SetEntryCache(std::shared_ptr<EntryCache> entryCache, uint64_t archiveKey) {
+    mEntryCache = entryCache;
+    mEntryCacheKey = archiveKey;
+}
+
 bool O2rArchive::Open() {
-    mZipArchive = zip_open(GetPath().c_str(), ZIP_CREATE, nullptr);
-    if (mZipArchive == nullptr) {
-        SPDLOG_ERROR("Failed to load zip file \"{}\"", GetPath());
+    if (!OpenZip()) {
         return false;
     }
 
@@ -89,26 +149,179 @@ bool O2rArchive::Open() {
     return true;
 }
 
+bool O2rArchive::OpenIndexed() {
+    mDeferOpen = true;
+    return true;
+}
+
+bool O2rArchive::OpenZip() {
+    if (mHasDescriptor) {
+        return OpenDescriptor();
+    }
+    mZipArchive = zip_open(GetPath().c_str(), ZIP_CREATE, nullptr);
+    if (mZipArchive == nullptr) {
+        SPDLOG_ERROR("Failed to load zip file \"{}\"", GetPath());
+        return false;
+    }
+    return true;
+}
+
+bool O2rArchive::OpenDescriptor() {
+    // Work on a duplicate so the owner of the descriptor can keep (and eventually close) its own copy
+    FILE* file = DuplicateDescriptor(mDescriptor.Fd);
+    if (file == nullptr) {
+        SPDLOG_ERROR("Failed to duplicate descriptor {} for zip file \"{}\"", mDescriptor.Fd, GetPath());
+        mZipArchive = nullptr;
+        return false;
+    }
+
+    zip_error_t error;
+    zip_error_init(&error);
+    zip_source_t* source =
+        zip_source_filep_create(file, mDescriptor.Offset, mDescriptor.Length < 0 ? -1 : mDescriptor.Length, &error);
+    if (source == nullptr) {
+        SPDLOG_ERROR("Failed to create zip source for \"{}\": {}", GetPath(), zip_error_strerror(&error));
+        zip_error_fini(&error);
+        fclose(file);
+        mZipArchive = nullptr;
+        return false;
+    }
+
+    // The source owns the FILE from here on and closes it when the archive is closed
+    mZipArchive = zip_open_from_source(source, ZIP_RDONLY, &error);
+    if (mZipArchive == nullptr) {
+        SPDLOG_ERROR("Failed to load zip file \"{}\" from descriptor: {}", GetPath(), zip_error_strerror(&error));
+        zip_source_free(source);
+    }
+    zip_error_fini(&error);
+    return mZipArchive != nullptr;
+}
+
 bool O2rArchive::Close() {
     if (mZipArchive == nullptr) {
+        if (mDeferOpen) {
+            mDeferOpen = false; // indexed but never read from
+            return true;
+        }
         SPDLOG_ERROR("Cannot close zip file. Zip file not loaded. \"{}\"", GetPath());
         return false;
     }
 
+    mDeferOpen = false;
     if (zip_close(mZipArchive) == -1) {
         SPDLOG_ERROR("Failed to close zip file \"{}\"", GetPath());
         return false;
     }
+    mZipArchive = nullptr;
 
     return true;
 }
 
+bool O2rArchive::Merge(const std::vector<std::string>& inputPaths, const std::string& outputPath) {
+    const std::string tmpPath = outputPath + ".tmp";
+    std::remove(tmpPath.c_str());
+
+    int error = 0;
+    zip_t* output = zip_open(tmpPath.c_str(), ZIP_CREATE | ZIP_TRUNCATE, &error);
+    if (output == nullptr) {
+        SPDLOG_ERROR("Failed to create merged archive \"{}\" (libzip error {})", tmpPath, error);
+        return false;
+    }
+
+    // Sources are read when the output is closed, so they stay open until then
+    std::vector<zip_t*> inputs;
+    const auto closeInputs = [&inputs]() {
+        for (zip_t* input : inputs) {
+            zip_discard(input);
+        }
+    };
+
+    std::map<std::string, std::pair<zip_t*, zip_uint64_t>> entries; // sorted, so the output is deterministic
+    for (const auto& inputPath : inputPaths) {
+        zip_t* input = zip_open(inputPath.c_str(), ZIP_RDONLY, &error);
+        if (input == nullptr) {
+            SPDLOG_ERROR("Failed to open \"{}\" for merging (libzip error {})", inputPath, error);
+            zip_discard(output);
+            closeInputs();
+            std::remove(tmpPath.c_str());
+            return false;
+        }
+        inputs.push_back(input);
+
+        const zip_int64_t count = zip_get_num_entries(input, 0);
+        for (zip_int64_t i = 0; i < count; i++) {
+            const char* name = zip_get_name(input, i, ZIP_FL_ENC_RAW);
+            if (name == nullptr || name[0] == '\0' || name[strlen(name) - 1] == '/') {
+                continue;
+            }
+            entries[name] = { input, static_cast<zip_uint64_t>(i) };
+        }
+    }
+
+    for (const auto& [name, source] : entries) {
+        // Without ZIP_FL_RECOMPRESS the compressed bytes are copied verbatim
+        zip_source_t* data = zip_source_zip(output, source.first, source.second, 0, 0, -1);
+        if (data == nullptr || zip_file_add(output, name.c_str(), data, ZIP_FL_ENC_UTF_8) < 0) {
+            SPDLOG_ERROR("Failed to add \"{}\" to merged archive: {}", name, zip_strerror(output));
+            if (data != nullptr) {
+                zip_source_free(data);
+            }
+            zip_discard(output);
+            closeInputs();
+            std::remove(tmpPath.c_str());
+            return false;
+        }
+    }
+
+    if (zip_close(output) < 0) {
+        SPDLOG_ERROR("Failed to write merged archive: {}", zip_strerror(output));
+        zip_discard(output);
+        closeInputs();
+        std::remove(tmpPath.c_str());
+        return false;
+    }
+    closeInputs();
+
+    // The caller marks the pack current once this returns, so it must be on disk before it replaces the old one
+#ifndef _WIN32
+    const int fd = open(tmpPath.c_str(), O_RDONLY | O_CLOEXEC);
+    const bool synced = fd >= 0 && fsync(fd) == 0;
+    if (fd >= 0) {
+        close(fd);
+    }
+    if (!synced) {
+        SPDLOG_ERROR("Failed to sync merged archive \"{}\"", tmpPath);
+        std::remove(tmpPath.c_str());
+        return false;
+    }
+#endif
+
+    std::error_code ec;
+    std::filesystem::rename(tmpPath, outputPath, ec);
+    if (ec) {
+        SPDLOG_ERROR("Failed to move merged archive into place: {}", ec.message());
+        std::remove(tmpPath.c_str());
+        return false;
+    }
+
+    SPDLOG_INFO("Merged {} archive(s), {} entries, into {}", inputPaths.size(), entries.size(), outputPath);
+    return true;
+}
+
 bool O2rArchive::WriteFile(const std::string& filePath, const std::vector<uint8_t>& data) {
+    if (mDeferOpen) {
+        std::call_once(mDeferredOpen, [this]() { OpenZip(); });
+    }
     if (!mZipArchive) {
         SPDLOG_ERROR("Cannot write to zip: Archive is not open.");
         return false;
     }
 
+    if (mHasDescriptor) {
+        SPDLOG_ERROR("Cannot write to zip: \"{}\" is opened read-only from a descriptor.", GetPath());
+        return false;
+    }
+
     // Create a new zip source from the data buffer
     zip_source_t* source = zip_source_buffer(mZipArchive, data.data(), data.size(), 0);
     if (!source) {
@@ -5,19 +5,23 @@
 #include <string>
 #include <stdint.h>
 #include <string>
+#include <mutex>
 
 #include "zip.h"
 
 #include "resource/File.h"
 #include "resource/Resource.h"
 #include "resource/archive/Archive.h"
+#include "resource/archive/ArchiveManager.h"
 
 namespace Ship {
 struct File;
+class EntryCache;
 
 class O2rArchive final : virtual public Archive {
   public:
     O2rArchive(const std::string& archivePath);
+    O2rArchive(const std::string& archivePath, const ArchiveDescriptor& descriptor);
     ~O2rArchive();
 
     bool Open();
@@ -27,7 +31,27 @@ class O2rArchive final : virtual public Archive {
     std::shared_ptr<File> LoadFile(const std::string& filePath);
     std::shared_ptr<File> LoadFile(uint64_t hash);
 
+    // Writes every entry of the inputs into one new archive at outputPath. Later inputs win entries with the
+    // same name. Compressed data is copied as-is, nothing is inflated or recompressed.
+    static bool Merge(const std::vector<std::string>& inputPaths, const std::string& outputPath);
+
+    // Serves compressed entries from (and adds them to) the given cache, under this archive's key
+    void SetEntryCache(std::shared_ptr<EntryCache> entryCache, uint64_t archiveKey);
+
+  protected:
+    // With a cached file list there's nothing to read up front, so the zip is opened on the first LoadFile()
+    bool OpenIndexed();
+
   private:
-    zip_t* mZipArchive;
+    bool OpenZip();
+    bool OpenDescriptor();
+
+    zip_t* mZipArchive = nullptr;
+    bool mDeferOpen = false;
+    std::once_flag mDeferredOpen;
+    bool mHasDescriptor = false;
+    ArchiveDescriptor mDescriptor;
+    std::shared_ptr<EntryCache> mEntryCache;
+    uint64_t mEntryCacheKey = 0;
 };
 } // namespace Ship
@@ -6,6 +6,10 @@
 #include <window/Window.h>
 #include "port/interpolation/FrameInterpolation.h"
 
+#ifdef __ANDROID__
+#include "port/mobile/MobileImpl.h"
+#endif
+
 extern "C" {
 #include <macros.h>
 #include <defines.h>
@@ -162,6 +166,11 @@ void freecam_mouse_manager(Camera* camera, Vec3f forwardVector) {
             yawChange = mouse.x * MOUSE_SENSITIVITY_X;
             pitchChange = mouse.y * MOUSE_SENSITIVITY_Y;
         }
+#ifdef __ANDROID__
+        // Look-around area of the touch overlay, already in radians for this frame
+        yawChange += Ship::Mobile::GetCameraYaw();
+        pitchChange += Ship::Mobile::GetCameraPitch();
+#endif
         // Update rotational velocity based on mouse movement
         freeCam.rotVelocity[1] += yawChange * 65535.0f / (2 * M_PI);  // Yaw (left/right)
         freeCam.rotVelocity[2] += pitchChange * 65535.0f / (2 * M_PI); // Pitch (up/down)
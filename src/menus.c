@@ -20,6 +20,7 @@
 #include <sounds.h>
 #include "spawn_players.h"
 #include "port/Game.h"
+#include "port/Engine.h"
 
 /** BSS **/
 s32 gIntroModelZEye;
@@ -1911,6 +1912,7 @@ void load_menu_states(s32 menuSelection) {
             func_800CA008(0, 0);
             play_sequence(MUSIC_SEQ_TITLE_SCREEN);
             gCourseMapInit = 0;
+            GameEngine_OnTitleScreen();
             break;
         }
         case 1:
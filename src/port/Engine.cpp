@@ -4,6 +4,7 @@
 #include "GameExtractor.h"
 #include "ui/ImguiUI.h"
 #include "libultraship/src/Context.h"
+#include "resource/archive/ArchiveManager.h"
 #include "libultraship/src/controller/controldevice/controller/mapping/ControllerDefaultMappings.h"
 #include "resource/type/ResourceType.h"
 #include "resource/importers/GenericArrayFactory.h"
@@ -25,6 +26,7 @@
 #include "window/gui/resource/Font.h"
 #include "window/gui/resource/FontFactory.h"
 #include "SpaghettiGui.h"
+#include "StartupTrace.h"
 
 #include "port/interpolation/FrameInterpolation.h"
 #include <graphic/Fast3D/Fast3dWindow.h>
@@ -32,6 +34,9 @@
 // #include <Fast3D/gfx_rendering_api.h>
 #include <SDL2/SDL.h>
 
+#include <fstream>
+#include <map>
+#include <unordered_set>
 #include <utility>
 
 #ifdef __SWITCH__
@@ -54,33 +59,189 @@ float gInterpolationStep = 0.0f;
 }
 
 #ifdef __ANDROID__
-#include <thread>
-#include <chrono>
+#include "port/mobile/MobileImpl.h"
+#include <jni.h>
+#include <mutex>
+#include <condition_variable>
 
-extern "C" {
-    void waitForSetupFromNative() {
-        // Simple polling approach - wait for the file to exist
-        const std::string main_path = Ship::Context::GetPathRelativeToAppDirectory("mk64.o2r");
-        
-        SPDLOG_INFO("Waiting for mk64.o2r file selection...");
-        
-        // Poll for the file existence with a timeout
-        int timeout_seconds = 300; // 5 minutes timeout
-        int poll_count = 0;
-        
-        while (!std::filesystem::exists(main_path) && poll_count < timeout_seconds * 10) {
-            std::this_thread::sleep_for(std::chrono::milliseconds(100));
-            poll_count++;
+// Java (MainActivity) reports once mk64.o2r has been fully written and synced, or that setup was abandoned.
+enum class SetupState { Pending, Ready, Cancelled };
+
+static std::mutex sSetupMutex;
+static std::condition_variable sSetupCondition;
+static SetupState sSetupState = SetupState::Pending;
+
+static void SignalSetupState(SetupState state) {
+    {
+        std::lock_guard<std::mutex> lock(sSetupMutex);
+        if (sSetupState != SetupState::Pending) {
+            return;
         }
-        
-        if (std::filesystem::exists(main_path)) {
-            SPDLOG_INFO("mk64.o2r file found, continuing...");
-            // Add a small delay to ensure file operations are complete
-            std::this_thread::sleep_for(std::chrono::milliseconds(500));
+        sSetupState = state;
+    }
+    sSetupCondition.notify_all();
+}
+
+extern "C" {
+// Called from MainActivity.onCreate before the engine thread starts: the process (and this state) can
+// outlive an activity, so a relaunch must not see the previous launch's answer.
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeSetupBegin(JNIEnv* env, jclass clazz) {
+    std::lock_guard<std::mutex> lock(sSetupMutex);
+    sSetupState = SetupState::Pending;
+}
+
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeSetupReady(JNIEnv* env, jclass clazz) {
+    SignalSetupState(SetupState::Ready);
+}
+
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeSetupCancelled(JNIEnv* env, jclass clazz) {
+    SignalSetupState(SetupState::Cancelled);
+}
+
+// Lets an archive path be read from a descriptor Java keeps open (e.g. mk64.o2r in the user's SAF folder)
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeRegisterArchiveFd(JNIEnv* env, jclass clazz,
+                                                                               jstring path, jint fd, jlong offset,
+                                                                               jlong length) {
+    const char* chars = env->GetStringUTFChars(path, nullptr);
+    Ship::ArchiveManager::RegisterArchiveDescriptor(chars, { fd, offset, length });
+    env->ReleaseStringUTFChars(path, chars);
+}
+
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeUnregisterArchiveFd(JNIEnv* env, jclass clazz,
+                                                                                 jstring path) {
+    const char* chars = env->GetStringUTFChars(path, nullptr);
+    Ship::ArchiveManager::UnregisterArchiveDescriptor(chars);
+    env->ReleaseStringUTFChars(path, chars);
+}
+
+// File list of an archive MainActivity already validated (ArchiveCheck.java), so it isn't indexed twice
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeRegisterArchiveIndex(JNIEnv* env, jclass clazz,
+                                                                                  jstring path, jlong size,
+                                                                                  jlong modifiedTime,
+                                                                                  jobjectArray names,
+                                                                                  jboolean hasGameVersion,
+                                                                                  jint gameVersion) {
+    std::vector<std::string> fileNames;
+    const jsize count = env->GetArrayLength(names);
+    fileNames.reserve(count);
+    for (jsize i = 0; i < count; i++) {
+        auto name = (jstring)env->GetObjectArrayElement(names, i);
+        const char* chars = env->GetStringUTFChars(name, nullptr);
+        fileNames.emplace_back(chars);
+        env->ReleaseStringUTFChars(name, chars);
+        env->DeleteLocalRef(name);
+    }
+
+    const char* pathChars = env->GetStringUTFChars(path, nullptr);
+    Ship::ArchiveManager::RegisterArchiveIndex(pathChars, size, modifiedTime, fileNames, hasGameVersion,
+                                             gameVersion);
+    env->ReleaseStringUTFChars(path, pathChars);
+}
+
+// Merges the enabled mod archives (in load order) into one pack; see ModPack.java
+JNIEXPORT jboolean JNICALL Java_com_izzy_kart_MainActivity_nativeMergeArchives(JNIEnv* env, jclass clazz,
+                                                                                jobjectArray inputs, jstring output) {
+    std::vector<std::string> inputPaths;
+    const jsize count = env->GetArrayLength(inputs);
+    for (jsize i = 0; i < count; i++) {
+        auto path = (jstring)env->GetObjectArrayElement(inputs, i);
+        const char* chars = env->GetStringUTFChars(path, nullptr);
+        inputPaths.emplace_back(chars);
+        env->ReleaseStringUTFChars(path, chars);
+        env->DeleteLocalRef(path);
+    }
+
+    const char* outputChars = env->GetStringUTFChars(output, nullptr);
+    const std::string outputPath = outputChars;
+    env->ReleaseStringUTFChars(output, outputChars);
+
+    return Ship::ArchiveManager::MergeArchives(inputPaths, outputPath) ? JNI_TRUE : JNI_FALSE;
+}
+
+// Mod archives the live mod sync rewrote or removed; remounted on the game thread at the next StartFrame()
+static std::mutex sModReloadMutex;
+static std::vector<std::string> sModReloadPaths;
+
+JNIEXPORT void JNICALL Java_com_izzy_kart_MainActivity_nativeReloadModArchives(JNIEnv* env, jclass clazz,
+                                                                               jobjectArray paths) {
+    std::lock_guard<std::mutex> lock(sModReloadMutex);
+    const jsize count = env->GetArrayLength(paths);
+    for (jsize i = 0; i < count; i++) {
+        auto path = (jstring)env->GetObjectArrayElement(paths, i);
+        const char* chars = env->GetStringUTFChars(path, nullptr);
+        sModReloadPaths.emplace_back(chars);
+        env->ReleaseStringUTFChars(path, chars);
+        env->DeleteLocalRef(path);
+    }
+}
+}
+
+static void ApplyPendingModReloads() {
+    std::vector<std::string> paths;
+    {
+        std::lock_guard<std::mutex> lock(sModReloadMutex);
+        paths.swap(sModReloadPaths);
+    }
+    if (paths.empty()) {
+        return;
+    }
+
+    auto resourceManager = Ship::Context::GetInstance()->GetResourceManager();
+    const auto affected = resourceManager->GetArchiveManager()->RemountArchives(paths);
+
+    // Same as ResourceManager::DirtyResources, but for paths that may no longer exist in any archive
+    for (const auto& path : affected) {
+        if (auto resource = resourceManager->GetCachedResource(path, true)) {
+            resource->Dirty();
         } else {
-            SPDLOG_ERROR("Timeout waiting for mk64.o2r file selection");
+            resourceManager->UnloadResource(path);
+        }
+    }
+    gfx_texture_cache_clear();
+    SPDLOG_INFO("Reloaded {} mod archive(s), {} resource(s) affected", paths.size(), affected.size());
+}
+
+// Format: "v1", then one "archive path\tfile path" line per file, in the order the boot sequence loaded them
+static void WriteBootProfile(const std::vector<std::pair<std::string, std::string>>& trace) {
+    const std::string path = Ship::Context::GetPathRelativeToAppDirectory("boot_profile.txt");
+    const std::string tmpPath = path + ".tmp";
+    {
+        std::ofstream out(tmpPath, std::ios::trunc);
+        out << "v1\n";
+        for (const auto& [archive, file] : trace) {
+            out << archive << '\t' << file << '\n';
+        }
+        if (!out.good()) {
+            SPDLOG_WARN("Could not write boot profile {}", tmpPath);
+            return;
         }
     }
+    std::error_code error;
+    std::filesystem::rename(tmpPath, path, error);
+    if (error) {
+        SPDLOG_WARN("Could not replace boot profile {}: {}", path, error.message());
+    }
+}
+
+// The engine's spans go to Java, which adds its own and writes startup_trace.json (StartupTrace.java)
+static void SendStartupTrace(const std::string& events) {
+    JNIEnv* env = (JNIEnv*)SDL_AndroidGetJNIEnv();
+    jclass cls = env->FindClass("com/izzy/kart/MainActivity");
+    jmethodID mid = env->GetStaticMethodID(cls, "onStartupTraceFinished", "(Ljava/lang/String;)V");
+    jstring json = env->NewStringUTF(events.c_str());
+    env->CallStaticVoidMethod(cls, mid, json);
+    env->DeleteLocalRef(json);
+    env->DeleteLocalRef(cls);
+}
+
+// Blocks until Java signals; returns false if setup was cancelled.
+static bool WaitForSetupFromJava() {
+    SPDLOG_INFO("Waiting for mk64.o2r setup...");
+    StartupTrace::Scope span("Wait for setup from Java");
+
+    std::unique_lock<std::mutex> lock(sSetupMutex);
+    sSetupCondition.wait(lock, [] { return sSetupState != SetupState::Pending; });
+    return sSetupState == SetupState::Ready;
 }
 #endif
 
@@ -93,6 +254,112 @@ Fast::Interpreter* GetInterpreter() {
 
 GameEngine* GameEngine::Instance;
 
+// Called once the first frame has been drawn. Open the file in Perfetto (ui.perfetto.dev) or chrome://tracing.
+static void WriteStartupTrace() {
+    const std::string events = StartupTrace::Finish();
+    if (events.empty()) {
+        return;
+    }
+#ifdef __ANDROID__
+    SendStartupTrace(events);
+#else
+    const std::string path = Ship::Context::GetPathRelativeToAppDirectory("startup_trace.json");
+    const std::string tmpPath = path + ".tmp";
+    {
+        std::ofstream out(tmpPath, std::ios::trunc);
+        out << "{\"traceEvents\":[" << events << "],\"displayTimeUnit\":\"ms\"}\n";
+        if (!out.good()) {
+            SPDLOG_WARN("Could not write startup trace {}", tmpPath);
+            return;
+        }
+    }
+    std::error_code error;
+    std::filesystem::rename(tmpPath, path, error);
+    if (error) {
+        SPDLOG_WARN("Could not replace startup trace {}: {}", path, error.message());
+    }
+#endif
+}
+
+// mod_conflicts.txt, written by the Android mod manager at sync time (ModConflicts.java): "v2", a key, the enabled
+// archives in load order as tab-separated "size:path" items, then the archives that later ones override completely.
+// Returns the latter when the recorded order and sizes still match the mods about to be mounted, nothing otherwise.
+static std::unordered_set<std::string>
+GetFullyOverriddenMods(const std::string& conflictsPath, const std::vector<std::pair<std::string, std::string>>& mods) {
+    std::ifstream index(conflictsPath);
+    std::string version, key, order, overridden;
+    if (!index.is_open() || !std::getline(index, version) || version != "v2" || !std::getline(index, key) ||
+        !std::getline(index, order) || !std::getline(index, overridden) || overridden.empty()) {
+        return {};
+    }
+
+    std::string expected;
+    for (const auto& [relative, full] : mods) {
+        std::error_code error;
+        const auto size = std::filesystem::file_size(full, error);
+        if (error) {
+            return {};
+        }
+        expected += (expected.empty() ? "" : "\t") + std::to_string(size) + ":" + relative;
+    }
+    if (order != expected) {
+        SPDLOG_INFO("Mod conflict index is out of date, mounting every enabled mod");
+        return {};
+    }
+
+    const auto names = StringHelper::Split(overridden, "\t");
+    return { names.begin(), names.end() };
+}
+
+// Mod archives under modsPath in mount order (later ones win conflicts). mod_profile.txt, written by the
+// Android mod manager, lists paths relative to modsPath as "+path" (enabled) or "-path" (disabled) in load
+// order. Enabled ones are mounted in that order, disabled ones are skipped and archives it doesn't mention
+// are mounted last in path order. Without a profile every archive is mounted in path order. Archives the
+// conflict index says are overridden entirely by later ones are left out, since nothing would load from them.
+static std::vector<std::string> GetModArchivesInLoadOrder(const std::string& modsPath, const std::string& profilePath,
+                                                          const std::string& conflictsPath) {
+    std::map<std::string, std::string> found; // relative path -> full path, sorted
+    for (const auto& p : std::filesystem::recursive_directory_iterator(modsPath)) {
+        auto ext = p.path().extension().string();
+        if (StringHelper::IEquals(ext, ".zip") || StringHelper::IEquals(ext, ".o2r")) {
+            found[std::filesystem::relative(p.path(), modsPath).generic_string()] = p.path().generic_string();
+        }
+    }
+
+    std::vector<std::pair<std::string, std::string>> mods; // relative path, full path
+    if (std::ifstream profile(profilePath); profile.is_open()) {
+        std::string line;
+        std::getline(profile, line); // format version
+        while (std::getline(profile, line)) {
+            if (line.size() < 2 || (line[0] != '+' && line[0] != '-')) {
+                continue;
+            }
+            auto it = found.find(line.substr(1));
+            if (it == found.end()) {
+                continue;
+            }
+            if (line[0] == '+') {
+                mods.emplace_back(it->first, it->second);
+            } else {
+                SPDLOG_INFO("Mod disabled by profile: {}", it->first);
+            }
+            found.erase(it);
+        }
+    }
+    mods.insert(mods.end(), found.begin(), found.end());
+
+    const auto overridden = GetFullyOverriddenMods(conflictsPath, mods);
+    std::vector<std::string> ordered;
+    for (const auto& [relative, full] : mods) {
+        if (overridden.contains(relative)) {
+            SPDLOG_INFO("Mod overridden entirely by later mods, not mounted: {}", relative);
+            continue;
+        }
+        ordered.push_back(full);
+    }
+    return ordered;
+}
+
 bool CreateDirectoryRecursive(std::string const& dirName, std::error_code& err) {
     err.clear();
     if (!std::filesystem::create_directories(dirName, err)) {
@@ -109,7 +376,7 @@ bool CreateDirectoryRecursive(std::string const& dirName, std::error_code& err)
 GameEngine::GameEngine() {
 
     const std::string main_path = Ship::Context::GetPathRelativeToAppDirectory("mk64.o2r");
-    const std::string assets_path = Ship::Context::LocateFileAcrossAppDirs("spaghetti.o2r");
+    std::string assets_path = Ship::Context::LocateFileAcrossAppDirs("spaghetti.o2r");
 
     std::vector<std::string> archiveFiles;
 
@@ -124,11 +391,19 @@ GameEngine::GameEngine() {
 
 #ifdef __ANDROID__
     // On Android, always wait for the user to select the file through the UI first
-    extern void waitForSetupFromNative();
-    waitForSetupFromNative();
-    
-    // After waiting, check if the file exists
-    if (std::filesystem::exists(main_path)) {
+    if (!WaitForSetupFromJava()) {
+        SPDLOG_INFO("mk64.o2r setup cancelled, exiting");
+        exit(0);
+    }
+
+    // spaghetti.o2r is normally read straight out of the APK (see MainActivity.registerBundledArchive)
+    if (const std::string bundled_path = Ship::Context::GetPathRelativeToAppDirectory("spaghetti.o2r");
+        Ship::ArchiveManager::HasArchiveDescriptor(bundled_path)) {
+        assets_path = bundled_path;
+    }
+
+    // After waiting, check if the file exists (or is served from a descriptor)
+    if (std::filesystem::exists(main_path) || Ship::ArchiveManager::HasArchiveDescriptor(main_path)) {
         archiveFiles.push_back(main_path);
     } else {
         SPDLOG_ERROR("mk64.o2r file still not found after user selection");
@@ -151,18 +426,20 @@ GameEngine::GameEngine() {
     }
 #endif
 
-    if (std::filesystem::exists(assets_path)) {
+    if (std::filesystem::exists(assets_path) || Ship::ArchiveManager::HasArchiveDescriptor(assets_path)) {
         archiveFiles.push_back(assets_path);
     }
-    if (const std::string patches_path = Ship::Context::GetPathRelativeToAppDirectory("mods");
+    // A consolidated pack of the enabled mods (ModPack.java) replaces mounting them one by one
+    if (const std::string pack_path = Ship::Context::GetPathRelativeToAppDirectory("mod_pack.o2r");
+        std::filesystem::exists(pack_path)) {
+        archiveFiles.push_back(pack_path);
+    } else if (const std::string patches_path = Ship::Context::GetPathRelativeToAppDirectory("mods");
         !patches_path.empty() && std::filesystem::exists(patches_path)) {
         if (std::filesystem::is_directory(patches_path)) {
-            for (const auto& p : std::filesystem::recursive_directory_iterator(patches_path)) {
-                auto ext = p.path().extension().string();
-                if (StringHelper::IEquals(ext, ".zip") || StringHelper::IEquals(ext, ".o2r")) {
-                    archiveFiles.push_back(p.path().generic_string());
-                }
-            }
+            const auto mods = GetModArchivesInLoadOrder(
+                patches_path, Ship::Context::GetPathRelativeToAppDirectory("mod_profile.txt"),
+                Ship::Context::GetPathRelativeToAppDirectory("mod_conflicts.txt"));
+            archiveFiles.insert(archiveFiles.end(), mods.begin(), mods.end());
         }
     }
 
@@ -227,7 +504,14 @@ GameEngine::GameEngine() {
     );
     auto controlDeck = std::make_shared<LUS::ControlDeck>(std::vector<CONTROLLERBUTTONS_T>(), defaultMappings);
 
-    this->context->InitResourceManager(archiveFiles, {}, 3); // without this line InitWindow fails in Gui::Init()
+    {
+        StartupTrace::Scope span("Mount archives");
+        this->context->InitResourceManager(archiveFiles, {}, 3); // without this line InitWindow fails in Gui::Init()
+    }
+#ifdef __ANDROID__
+    // What the boot sequence reads, saved at the title screen for next launch's prewarm (ArchivePrewarm.java)
+    this->context->GetResourceManager()->GetArchiveManager()->StartLoadTrace();
+#endif
     this->context->InitConsole(); // without this line the GuiWindow constructor fails in ConsoleWindow::InitElement()
 
     auto gui = std::make_shared<Ship::SpaghettiGui>(std::vector<std::shared_ptr<Ship::GuiWindow>>({}));
@@ -236,7 +520,10 @@ GameEngine::GameEngine() {
     // auto wnd = std::make_shared<Fast::Fast3dWindow>(std::vector<std::shared_ptr<Ship::GuiWindow>>({}));
     // auto wnd = std::dynamic_pointer_cast<Fast::Fast3dWindow>(Ship::Context::GetInstance()->GetWindow());
 
-    this->context->Init(archiveFiles, {}, 3, { 26800, 512, 1100 }, wnd, controlDeck);
+    {
+        StartupTrace::Scope span("Context::Init (window, controllers, audio)");
+        this->context->Init(archiveFiles, {}, 3, { 26800, 512, 1100 }, wnd, controlDeck);
+    }
 
 #ifndef __SWITCH__
     Ship::Context::GetInstance()->GetLogger()->set_level(
@@ -363,6 +650,30 @@ uint32_t GameEngine::GetInterpolationFrameCount() {
     return ceil((float) GetInterpolationFPS() / (60.0f / 2 /*gVIsPerFrame*/));
 }
 
+// Called from the title screen's menu setup; only the first time counts as the end of boot
+extern "C" void GameEngine_OnTitleScreen() {
+    static bool sReached = false;
+    if (sReached) {
+        return;
+    }
+    sReached = true;
+
+    auto archiveManager = Ship::Context::GetInstance()->GetResourceManager()->GetArchiveManager();
+    // Boot is done loading; make what it added to the entry cache durable (in the background)
+    archiveManager->FlushEntryCache();
+#ifdef __ANDROID__
+    const auto trace = archiveManager->StopLoadTrace();
+    WriteBootProfile(trace);
+    SPDLOG_INFO("Title screen reached, {} file(s) loaded during boot", trace.size());
+
+    JNIEnv* env = (JNIEnv*)SDL_AndroidGetJNIEnv();
+    jclass cls = env->FindClass("com/izzy/kart/MainActivity");
+    jmethodID mid = env->GetStaticMethodID(cls, "onTitleScreen", "()V");
+    env->CallStaticVoidMethod(cls, mid);
+    env->DeleteLocalRef(cls);
+#endif
+}
+
 extern "C" uint32_t GameEngine_GetInterpolationFrameCount() {
     return GameEngine::GetInterpolationFrameCount();
 }
@@ -404,10 +715,17 @@ int GameEngine::ShowYesNoBox(const char* title, const char* box) {
 }
 
 void GameEngine::Create() {
+    StartupTrace::Scope span("GameEngine::Create");
     const auto instance = Instance = new GameEngine();
     instance->gHMAS = new HMAS();
-    instance->AudioInit();
+    {
+        StartupTrace::Scope audioSpan("Audio init");
+        instance->AudioInit();
+    }
     GameUI::SetupGuiElements();
+#ifdef __ANDROID__
+    Ship::Mobile::SetUnbufferedTouch(CVarGetInteger("gTouchUnbufferedDispatch", 0));
+#endif
 #if defined(__SWITCH__) || defined(__WIIU__)
     CVarRegisterInteger("gControlNav", 1); // always enable controller nav on switch/wii u
 #endif
@@ -426,6 +744,12 @@ void GameEngine::Destroy() {
 bool ShouldClearTextureCacheAtEndOfFrame = false;
 
 void GameEngine::StartFrame() const {
+#ifdef __ANDROID__
+    ApplyPendingModReloads();
+    // Before the game reads its pads this frame
+    Ship::Mobile::PollTouchControls();
+#endif
+
     using Ship::KbScancode;
     const int32_t dwScancode = this->context->GetWindow()->GetLastScancode();
     this->context->GetWindow()->SetLastScancode(-1);
@@ -464,10 +788,22 @@ void GameEngine::RunCommands(Gfx* Commands, const std::vector<std::unordered_map
 
     interpreter->mInterpolationIndex = 0;
 
+    static bool sFirstFrame = true;
+    const uint64_t frameStart = StartupTrace::Now();
     for (const auto& m : mtx_replacements) {
-        wnd->DrawAndRunGraphicsCommands(Commands, m);
+        [[maybe_unused]] const bool drawn = wnd->DrawAndRunGraphicsCommands(Commands, m);
+#ifdef __ANDROID__
+        if (drawn) {
+            Ship::Mobile::OnFramePresented();
+        }
+#endif
         interpreter->mInterpolationIndex++;
     }
+    if (sFirstFrame) {
+        sFirstFrame = false;
+        StartupTrace::Span("First frame", frameStart);
+        WriteStartupTrace();
+    }
 
     bool curAltAssets = CVarGetInteger("gEnhancements.Mods.AlternateAssets", 0);
     if (prevAltAssets != curAltAssets) {
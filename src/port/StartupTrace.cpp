@@ -0,0 +1,126 @@
+#include "StartupTrace.h"
+
+#include <chrono>
+#include <mutex>
+#include <thread>
+#include <unordered_map>
+#include <vector>
+#ifdef _WIN32
+#include <process.h>
+#else
+#include <unistd.h>
+#endif
+#ifdef __linux__
+#include <sys/prctl.h>
+#include <sys/syscall.h>
+#endif
+
+namespace StartupTrace {
+struct Event {
+    const char* Name;
+    uint64_t Start;
+    uint64_t End; // equal to Start for instants
+    uint64_t Thread;
+    bool Instant;
+};
+
+static std::mutex sMutex;
+static std::vector<Event> sEvents;
+static std::unordered_map<uint64_t, std::string> sThreadNames;
+static bool sFinished = false;
+
+static uint64_t CurrentThread() {
+#ifdef __linux__
+    // The kernel tid, which is also what Java's Process.myTid() reports for the same thread
+    return (uint64_t)syscall(SYS_gettid);
+#else
+    return std::hash<std::thread::id>()(std::this_thread::get_id());
+#endif
+}
+
+static void Record(const char* name, uint64_t start, uint64_t end, bool instant) {
+    const uint64_t thread = CurrentThread();
+    std::lock_guard<std::mutex> lock(sMutex);
+    if (sFinished) {
+        return;
+    }
+    sEvents.push_back({ name, start, end, thread, instant });
+#ifdef __linux__
+    if (!sThreadNames.contains(thread)) {
+        // prctl rather than pthread_getname_np, which Android only has from API 26 (minSdk is 24)
+        char threadName[17] = {};
+        prctl(PR_GET_NAME, threadName);
+        sThreadNames[thread] = threadName;
+    }
+#endif
+}
+
+uint64_t Now() {
+    // steady_clock is CLOCK_MONOTONIC on Linux and Android
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+               std::chrono::steady_clock::now().time_since_epoch())
+        .count();
+}
+
+void Span(const char* name, uint64_t startNs) {
+    Record(name, startNs, Now(), false);
+}
+
+void Instant(const char* name) {
+    const uint64_t now = Now();
+    Record(name, now, now, true);
+}
+
+static void AppendEscaped(std::string& out, const std::string& text) {
+    for (const char c : text) {
+        if (c == '"' || c == '\\') {
+            out += '\\';
+        }
+        if ((unsigned char)c >= 0x20) {
+            out += c;
+        }
+    }
+}
+
+std::string Finish() {
+    std::lock_guard<std::mutex> lock(sMutex);
+    if (sFinished) {
+        return "";
+    }
+    sFinished = true;
+
+#ifdef _WIN32
+    const std::string pid = std::to_string(_getpid());
+#else
+    const std::string pid = std::to_string(getpid());
+#endif
+    // Chrome trace timestamps are in microseconds
+    std::string out;
+    for (const auto& event : sEvents) {
+        if (!out.empty()) {
+            out += ',';
+        }
+        out += "{\"name\":\"";
+        AppendEscaped(out, event.Name);
+        out += "\",\"cat\":\"native\",\"ph\":\"";
+        out += event.Instant ? "i\",\"s\":\"p" : "X";
+        out += "\",\"ts\":" + std::to_string(event.Start / 1000);
+        if (!event.Instant) {
+            out += ",\"dur\":" + std::to_string((event.End - event.Start) / 1000);
+        }
+        out += ",\"pid\":" + pid + ",\"tid\":" + std::to_string(event.Thread) + "}";
+    }
+    for (const auto& [thread, name] : sThreadNames) {
+        if (!out.empty()) {
+            out += ',';
+        }
+        out += "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + std::to_string(thread) +
+               ",\"args\":{\"name\":\"";
+        AppendEscaped(out, name);
+        out += "\"}}";
+    }
+    sEvents.clear();
+    sThreadNames.clear();
+    return out;
+}
+} // namespace StartupTrace
@@ -0,0 +1,32 @@
+#pragma once
+
+#include <cstdint>
+#include <string>
+
+// Named spans of the engine's part of the launch, on CLOCK_MONOTONIC (the clock behind Java's System.nanoTime())
+// so they line up with the ones MainActivity records (StartupTrace.java). Everything is kept in memory until
+// Finish() turns it into Chrome trace events; after that, recording stops.
+namespace StartupTrace {
+uint64_t Now();
+void Span(const char* name, uint64_t startNs);
+void Instant(const char* name);
+// The recorded events as a comma-separated list of Chrome trace event objects (no surrounding brackets), or an
+// empty string if Finish() was already called.
+std::string Finish();
+
+// Records a span from construction to destruction.
+class Scope {
+  public:
+    explicit Scope(const char* name) : mName(name), mStart(Now()) {
+    }
+    ~Scope() {
+        Span(mName, mStart);
+    }
+    Scope(const Scope&) = delete;
+    Scope& operator=(const Scope&) = delete;
+
+  private:
+    const char* mName;
+    uint64_t mStart;
+};
+} // namespace StartupTrace
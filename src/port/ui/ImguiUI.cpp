@@ -8,6 +8,7 @@
 #include "Properties.h"
 #include "TrackProperties.h"
 #include "ContentBrowser.h"
+#include "TouchLatencyWindow.h"
 
 #include <spdlog/spdlog.h>
 #include <imgui.h>
@@ -40,6 +41,7 @@ std::shared_ptr<Ship::GuiWindow> mSceneExplorerWindow;
 std::shared_ptr<Ship::GuiWindow> mPropertiesWindow;
 std::shared_ptr<Ship::GuiWindow> mTrackPropertiesWindow;
 std::shared_ptr<Ship::GuiWindow> mContentBrowserWindow;
+std::shared_ptr<Ship::GuiWindow> mTouchLatencyWindow;
 
 void SetupGuiElements() {
     auto gui = Ship::Context::GetInstance()->GetWindow()->GetGui();
@@ -92,6 +94,11 @@ void SetupGuiElements() {
     mContentBrowserWindow =
         std::make_shared<Editor::ContentBrowserWindow>("gEditorEnabled", "Content Browser");
     gui->AddGuiWindow(mContentBrowserWindow);
+
+#ifdef __ANDROID__
+    mTouchLatencyWindow = std::make_shared<GameUI::TouchLatencyWindow>("gTouchLatencyEnabled", "Touch Latency");
+    gui->AddGuiWindow(mTouchLatencyWindow);
+#endif
 }
 
 void Destroy() {
@@ -103,6 +110,7 @@ void Destroy() {
     mPropertiesWindow = nullptr;
     mTrackPropertiesWindow = nullptr;
     mContentBrowserWindow = nullptr;
+    mTouchLatencyWindow = nullptr;
 }
 
 std::string GetWindowButtonText(const char* text, bool menuOpen) {
@@ -18,6 +18,10 @@
 #include <port/switch/SwitchImpl.h>
 #endif
 
+#ifdef __ANDROID__
+#include "port/mobile/MobileImpl.h"
+#endif
+
 extern "C" {
 extern s32 gGamestateNext;
 extern s32 gMenuSelection;
@@ -176,6 +180,12 @@ void PortMenu::AddSettings() {
             SDL_OpenURL(std::string("file:///" + std::filesystem::absolute(filesPath).string()).c_str());
         })
         .Options(ButtonOptions().Tooltip("Opens the folder that contains the save and mods folders, etc."));
+#ifdef __ANDROID__
+    AddWidget(path, "Manage Mods", WIDGET_BUTTON)
+        .Callback([](WidgetInfo& info) { Ship::Mobile::ShowModManager(); })
+        .Options(ButtonOptions().Tooltip(
+            "Choose which mods from your mods folder are loaded and in what order. Later mods win conflicts."));
+#endif
 
     // Audio Settings
     path.sidebarName = "Audio";
@@ -350,6 +360,34 @@ void PortMenu::AddSettings() {
         .CVar(CVAR_CONTROLLER_CONFIGURATION_WINDOW_OPEN)
         .WindowName("Input Editor")
         .Options(ButtonOptions().Tooltip("Enables the separate Bindings Window.").Size(Sizes::Inline));
+#ifdef __ANDROID__
+    AddWidget(path, "Touch Controls", WIDGET_SEPARATOR_TEXT);
+    AddWidget(path, "Low-latency touch", WIDGET_CVAR_CHECKBOX)
+        .CVar("gTouchUnbufferedDispatch")
+        .Callback([](WidgetInfo& info) {
+            Ship::Mobile::SetUnbufferedTouch(CVarGetInteger("gTouchUnbufferedDispatch", 0));
+        })
+        .Options(CheckboxOptions().Tooltip(
+            "Delivers touches to the game as soon as they arrive instead of once per display refresh. "
+            "Lowers input latency at the cost of some battery."));
+    AddWidget(path, "Look-around sensitivity: %.0f", WIDGET_CVAR_SLIDER_FLOAT)
+        .CVar("gTouchLookSensitivity")
+        .Options(FloatSliderOptions()
+                     .Tooltip("Degrees the camera turns per inch your finger moves on the right side of the screen.")
+                     .Min(30.0f)
+                     .Max(360.0f)
+                     .DefaultValue(120.0f)
+                     .Format("%.0f")
+                     .Step(10.0f));
+    AddWidget(path, "Stick prediction: %d ms", WIDGET_CVAR_SLIDER_INT)
+        .CVar("gTouchStickPredictionMs")
+        .Options(IntSliderOptions()
+                     .Tooltip("Moves the on-screen joystick ahead along your finger's motion to make up for display "
+                              "latency. 0 turns it off; high values overshoot on sharp turns.")
+                     .Min(0)
+                     .Max(50)
+                     .DefaultValue(0));
+#endif
 }
 int32_t motionBlurStrength;
 
@@ -559,6 +597,16 @@ void PortMenu::AddDevTools() {
             "Shows the stats window, with your FPS and frametimes, and the OS you're playing on"))
         .WindowName("Stats");
 
+#ifdef __ANDROID__
+    path = { "Developer", "Touch Latency", SECTION_COLUMN_1 };
+    AddSidebarEntry("Developer", "Touch Latency", 1);
+    AddWidget(path, "Popout Touch Latency", WIDGET_WINDOW_BUTTON)
+        .CVar("gTouchLatencyEnabled")
+        .Options(ButtonOptions().Tooltip(
+            "Shows how long touches take to reach the game and the screen (p50/p95/p99)"))
+        .WindowName("Touch Latency");
+#endif
+
     path = { "Developer", "Console", SECTION_COLUMN_1 };
     AddSidebarEntry("Developer", "Console", 1);
     AddWidget(path, "Popout Console", WIDGET_WINDOW_BUTTON)
@@ -0,0 +1,55 @@
+#include "TouchLatencyWindow.h"
+
+#include <imgui.h>
+#include <spdlog/spdlog.h>
+#include <libultraship/libultraship.h>
+
+#ifdef __ANDROID__
+#include "port/mobile/MobileImpl.h"
+#endif
+
+namespace GameUI {
+
+    TouchLatencyWindow::~TouchLatencyWindow() {
+        SPDLOG_TRACE("destruct touch latency window");
+    }
+
+    void TouchLatencyWindow::DrawElement() {
+#ifdef __ANDROID__
+        const Ship::TouchLatencyStats stats = Ship::Mobile::GetTouchLatencyStats();
+
+        ImGui::Text("Unbuffered touch dispatch: %s", CVarGetInteger("gTouchUnbufferedDispatch", 0) ? "on" : "off");
+        if (ImGui::BeginTable("TouchLatency", 5, ImGuiTableFlags_Borders)) {
+            ImGui::TableSetupColumn("From the touch event to");
+            ImGui::TableSetupColumn("p50 (ms)");
+            ImGui::TableSetupColumn("p95 (ms)");
+            ImGui::TableSetupColumn("p99 (ms)");
+            ImGui::TableSetupColumn("Samples");
+            ImGui::TableHeadersRow();
+
+            auto row = [](const char* label, float p50, float p95, float p99, size_t samples) {
+                ImGui::TableNextRow();
+                ImGui::TableNextColumn();
+                ImGui::TextUnformatted(label);
+                ImGui::TableNextColumn();
+                ImGui::Text("%.1f", p50);
+                ImGui::TableNextColumn();
+                ImGui::Text("%.1f", p95);
+                ImGui::TableNextColumn();
+                ImGui::Text("%.1f", p99);
+                ImGui::TableNextColumn();
+                ImGui::Text("%zu", samples);
+            };
+            row("Frame start (input read)", stats.ConsumeP50, stats.ConsumeP95, stats.ConsumeP99, stats.ConsumeSamples);
+            row("Frame presented", stats.PresentP50, stats.PresentP95, stats.PresentP99, stats.PresentSamples);
+            ImGui::EndTable();
+        }
+
+        if (ImGui::Button("Reset")) {
+            Ship::Mobile::ResetTouchLatencyStats();
+        }
+#else
+        ImGui::Text("Touch latency is only measured on Android.");
+#endif
+    }
+}
@@ -0,0 +1,16 @@
+#pragma once
+
+#include <libultraship/libultraship.h>
+
+namespace GameUI {
+// Percentiles of the touch latency probe (Ship::Mobile::GetTouchLatencyStats)
+class TouchLatencyWindow : public Ship::GuiWindow {
+public:
+    using Ship::GuiWindow::GuiWindow;
+    ~TouchLatencyWindow();
+protected:
+    void InitElement() override {};
+    void DrawElement() override;
+    void UpdateElement() override {};
+};
+}